@@ -0,0 +1,62 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.commands.BenchmarkDatabase;
+import ch.maxant.commands.demo.framework.commands.CommandMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * what <code>GET /cases/case/{nr}</code> costs behind the REST layer, i.e. {@link ClaimService#getCase(Long)},
+ * without the cache (a size of 0 means every lookup misses) and with one which is big enough for all the cases.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CaseLookupBenchmark {
+
+    private static final int CASES = 1000;
+
+    @Param({"0", "1000"})
+    public int cacheSize;
+
+    private BenchmarkDatabase db;
+
+    private EntityManager em;
+
+    private ClaimService service;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        db = new BenchmarkDatabase();
+        //case 1 is inserted by the migrations
+        db.execute("INSERT INTO T_CASE (ID, NR, DESCRIPTION, CREATED) SELECT RANDOM_UUID(), X, 'benchmark', NOW() FROM SYSTEM_RANGE(2, " + CASES + ")");
+        em = db.createEntityManager();
+
+        service = new ClaimService();
+        service.em = em;
+        service.caseCache = new CaseCache();
+        service.caseCache.metrics = new CommandMetrics();
+        service.caseCache.maxSize = cacheSize;
+        service.caseCache.ttl = 60000L; //longer than the benchmark
+        service.caseCache.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        em.close();
+        db.close();
+    }
+
+    @Benchmark
+    public Case getCase() {
+        em.clear(); //like a new request, which has a new persistence context
+        return service.getCase(ThreadLocalRandom.current().nextLong(1, CASES + 1));
+    }
+}
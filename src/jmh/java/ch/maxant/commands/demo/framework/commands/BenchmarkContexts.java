@@ -0,0 +1,45 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/** contexts and executors used by more than one benchmark */
+class BenchmarkContexts {
+
+    static final String COMMAND_NAME = "benchmark";
+
+    /** about 1.5kB of JSON, i.e. a context with some meat on it */
+    static Map<String, Object> context() {
+        return Collections.singletonMap("lines", lines());
+    }
+
+    static List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            lines.add("line number " + i + " of the text for a task, which is long enough");
+        }
+        return lines;
+    }
+
+    static ExecutableCommand<JsonNode> noOpExecutor(String name) {
+        return new ExecutableCommand<JsonNode>() {
+            @Override
+            public void execute(String idempotencyId, JsonNode context) {
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Class<JsonNode> getContextType() {
+                return JsonNode.class;
+            }
+        };
+    }
+}
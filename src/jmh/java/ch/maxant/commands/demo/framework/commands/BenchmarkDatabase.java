@@ -0,0 +1,90 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.CdiSetup;
+import org.flywaydb.core.Flyway;
+import org.hibernate.Session;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * an in-memory H2 database which lives as long as the benchmark's JVM, migrated by flyway just like in the tests,
+ * so that the benchmarks run offline.
+ */
+public class BenchmarkDatabase {
+
+    /** waits for row locks rather than failing, since some benchmarks deliberately contend for them */
+    static final String URL = "jdbc:h2:mem:jmh;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+
+    private final EntityManagerFactory emf;
+
+    public BenchmarkDatabase() {
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(URL, "sa", "");
+        flyway.clean();
+        flyway.migrate();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.url", URL);
+        properties.put("hibernate.show_sql", "false");
+        emf = Persistence.createEntityManagerFactory(CdiSetup.PRIMARY, properties);
+    }
+
+    public EntityManager createEntityManager() {
+        return emf.createEntityManager();
+    }
+
+    /** runs the given statement in its own transaction */
+    public int execute(String sql) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            int count = em.createNativeQuery(sql).executeUpdate();
+            em.getTransaction().commit();
+            return count;
+        } finally {
+            em.close();
+        }
+    }
+
+    /** inserts commands directly, which is a lot quicker than going via JPA */
+    void seed(int rows, String commandName, String context, byte[] contextData, boolean locked) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.unwrap(Session.class).doWork(conn -> {
+                String sql = "INSERT INTO T_COMMAND (COMMAND, ATTEMPTS, IDEMPOTENCY_ID, CONTEXT, CONTEXT_DATA, LOCKED, OWNER) VALUES (?, 0, ?, ?, ?, ?, ?)";
+                Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < rows; i++) {
+                        ps.setString(1, commandName);
+                        ps.setString(2, UUID.randomUUID().toString());
+                        ps.setString(3, context);
+                        ps.setBytes(4, contextData);
+                        ps.setTimestamp(5, locked ? now : null);
+                        ps.setString(6, locked ? "seed:1" : null);
+                        ps.addBatch();
+                        if (i % 1000 == 999) {
+                            ps.executeBatch();
+                        }
+                    }
+                    ps.executeBatch();
+                }
+            });
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    public void close() {
+        emf.close();
+    }
+}
@@ -0,0 +1,112 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.helpers.NOPLogger;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * claiming a batch of commands with {@link CommandRepository#lockCommands(int)}, by one thread and by several
+ * contending for the same backlog. each operation gives the batch straight back, so that the backlog stays the
+ * same size. the contexts are read as part of the claim, so the encoding shows up here too.
+ * with more than one node, the claiming instance owns none of the backlog's partitions, so every batch has to be
+ * stolen, after trying all the lanes in its own partitions first, which is the most statements a claim can take.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClaimBenchmark {
+
+    private static final int BACKLOG = 10000;
+
+    @State(Scope.Benchmark)
+    public static class Backlog {
+
+        @Param({"1", "10", "100"})
+        public int batchSize;
+
+        @Param({"UPDATE", "FOR_UPDATE"})
+        public ClaimMode claimMode;
+
+        @Param({"JSON", "SMILE"})
+        public ContextCodec.Encoding encoding;
+
+        @Param({"1", "4"})
+        public int nodeCount;
+
+        BenchmarkDatabase db;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            db = new BenchmarkDatabase();
+
+            ContextCodec codec = new ContextCodec();
+            codec.encoding = encoding;
+            Command sample = codec.newCommand(BenchmarkContexts.COMMAND_NAME, BenchmarkContexts.context());
+            db.seed(BACKLOG, BenchmarkContexts.COMMAND_NAME, sample.getContext(), sample.getContextData(), false);
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            db.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Claimer {
+
+        EntityManager em;
+
+        CommandRepository repo;
+
+        @Setup(Level.Trial)
+        public void setup(Backlog backlog) {
+            em = backlog.db.createEntityManager();
+            repo = new CommandRepository();
+            repo.em = em;
+            repo.logger = NOPLogger.NOP_LOGGER;
+            repo.claimMode = backlog.claimMode;
+            repo.nodeCount = backlog.nodeCount;
+            repo.nodeIndex = backlog.nodeCount - 1; //the backlog is all in partition 0, i.e. node 0's
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            em.close();
+        }
+
+        int claimAndRelease(int batchSize) {
+            em.getTransaction().begin();
+            List<Command> cmds = repo.lockCommands(batchSize);
+            em.getTransaction().commit();
+
+            if (!cmds.isEmpty()) {
+                List<Long> ids = cmds.stream().map(Command::getId).collect(Collectors.toList());
+                em.getTransaction().begin();
+                em.createNativeQuery("UPDATE T_COMMAND SET LOCKED = NULL, OWNER = NULL WHERE ID IN (:ids)")
+                        .setParameter("ids", ids)
+                        .executeUpdate();
+                em.getTransaction().commit();
+            }
+            em.clear();
+            return cmds.size();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int claim(Backlog backlog, Claimer claimer) {
+        return claimer.claimAndRelease(backlog.batchSize);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int claimContended(Backlog backlog, Claimer claimer) {
+        return claimer.claimAndRelease(backlog.batchSize);
+    }
+}
@@ -0,0 +1,135 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.framework.tracing.Tracer;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.helpers.NOPLogger;
+
+import javax.ejb.SessionContext;
+import javax.ejb.Timer;
+import javax.ejb.TimerService;
+import javax.enterprise.event.Event;
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * the paths a command takes through {@link CommandService}: being persisted, being executed straight after the
+ * transaction which created it, and being polled for, executed and deleted by the timer. outside of the container
+ * there are no new transactions, so each operation runs in one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandServiceBenchmark {
+
+    /** enough for the poller not to run dry during an iteration */
+    private static final int BACKLOG = 100000;
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    private BenchmarkDatabase db;
+
+    private EntityManager em;
+
+    private CommandService service;
+
+    private Timer retryTimer;
+
+    private String context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("commandservice.batch.size", String.valueOf(batchSize));
+
+        db = new BenchmarkDatabase();
+        em = db.createEntityManager();
+
+        service = new CommandService() {
+            @Override
+            public Future<Void> doImmediateRetryTimeout() {
+                return null; //one batch per operation
+            }
+        };
+        service.logger = NOPLogger.NOP_LOGGER;
+        service.commandRepo = new CommandRepository();
+        service.commandRepo.em = em;
+        service.commandRepo.logger = NOPLogger.NOP_LOGGER;
+        service.contextCodec = new ContextCodec();
+        service.retryBackoff = new RetryBackoff();
+        service.circuitBreakers = new CircuitBreakers();
+        service.rateLimiters = new RateLimiters();
+        service.metrics = new CommandMetrics();
+        service.tracer = new Tracer(0.0, span -> {});
+        service.commandExecutor = new CommandExecutor(Runnable::run, 1000);
+        service.commandInvoker = new CommandInvoker();
+        service.registry = new ExecutableCommandRegistry(Collections.singletonList(BenchmarkContexts.noOpExecutor(BenchmarkContexts.COMMAND_NAME)));
+
+        //stub only, otherwise mockito remembers every invocation
+        service.event = mock(Event.class, withSettings().stubOnly());
+        service.context = mock(SessionContext.class, withSettings().stubOnly());
+        service.timerService = mock(TimerService.class, withSettings().stubOnly());
+        when(service.context.getBusinessObject(CommandService.class)).thenReturn(service);
+        retryTimer = mock(Timer.class, withSettings().stubOnly());
+        when(retryTimer.getInfo()).thenReturn(CommandService.RETRY_COMMANDS);
+
+        context = service.contextCodec.write(BenchmarkContexts.context());
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        em.close();
+        db.close();
+        System.clearProperty("commandservice.batch.size");
+    }
+
+    @Setup(Level.Iteration)
+    public void seed() {
+        db.execute("DELETE FROM T_COMMAND");
+        db.seed(BACKLOG, BenchmarkContexts.COMMAND_NAME, context, null, false);
+    }
+
+    /** doesn't depend on the batch size */
+    @Benchmark
+    public Command persistCommand() {
+        Command command = new Command(BenchmarkContexts.COMMAND_NAME, context);
+        em.getTransaction().begin();
+        service.persistCommand(command);
+        em.getTransaction().commit();
+        em.clear();
+        return command;
+    }
+
+    /** doesn't depend on the batch size */
+    @Benchmark
+    public Command persistAndExecute() {
+        Command command = new Command(BenchmarkContexts.COMMAND_NAME, context);
+        em.getTransaction().begin();
+        service.persistCommand(command);
+        em.getTransaction().commit();
+
+        //as if the event had been observed after the commit
+        em.getTransaction().begin();
+        service.observe(command);
+        em.getTransaction().commit();
+        em.clear();
+        return command;
+    }
+
+    /** one batch from the backlog */
+    @Benchmark
+    public void pollExecuteAndDelete() {
+        em.getTransaction().begin();
+        service.timeout(retryTimer);
+        em.getTransaction().commit();
+        em.clear();
+    }
+}
@@ -0,0 +1,71 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** encoding and decoding contexts, compared to parsing a tree with a plain object mapper like we used to */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContextCodecBenchmark {
+
+    public static class TaskContext {
+        public long caseNr;
+        public String textForTask;
+        public List<String> lines;
+    }
+
+    private final ObjectMapper plainMapper = new ObjectMapper();
+
+    private ContextCodec codec;
+
+    private TaskContext context;
+
+    private String json;
+
+    private byte[] smile;
+
+    @Setup
+    public void setup() {
+        codec = new ContextCodec();
+        context = new TaskContext();
+        context.caseNr = 42L;
+        context.textForTask = "a task";
+        context.lines = BenchmarkContexts.lines();
+        json = codec.write(context);
+        smile = codec.encode(context);
+    }
+
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return plainMapper.readTree(json);
+    }
+
+    @Benchmark
+    public TaskContext readJson() throws IOException {
+        return codec.read(json, TaskContext.class);
+    }
+
+    @Benchmark
+    public TaskContext readSmile() throws IOException {
+        return codec.decode(smile, TaskContext.class);
+    }
+
+    @Benchmark
+    public String writeJson() {
+        return codec.write(context);
+    }
+
+    @Benchmark
+    public byte[] writeSmile() {
+        return codec.encode(context);
+    }
+}
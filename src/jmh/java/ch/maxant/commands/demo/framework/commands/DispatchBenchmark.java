@@ -0,0 +1,58 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** finding the executor for a command, compared to iterating over all of them like we used to */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    @Param({"4", "64"})
+    public int numCommandTypes;
+
+    private List<ExecutableCommand<?>> executors;
+
+    private ExecutableCommandRegistry registry;
+
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        executors = new ArrayList<>();
+        names = new String[numCommandTypes];
+        for (int i = 0; i < numCommandTypes; i++) {
+            names[i] = "command" + i;
+            executors.add(BenchmarkContexts.noOpExecutor(names[i]));
+        }
+        registry = new ExecutableCommandRegistry(executors);
+    }
+
+    private String anyName() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    public ExecutableCommand<?> iterate() {
+        String name = anyName();
+        for (ExecutableCommand<?> ec : executors) {
+            if (ec.getName().equals(name)) {
+                return ec;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public ExecutableCommand<?> registry() {
+        return registry.get(anyName());
+    }
+}
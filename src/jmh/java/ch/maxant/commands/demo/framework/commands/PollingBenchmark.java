@@ -0,0 +1,105 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.helpers.NOPLogger;
+
+import javax.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * polling with {@link CommandRepository#lockCommands(int)} when almost none of a huge backlog is ready: half of it
+ * is being processed by other instances, half failed and is waiting to be retried later, and the few which are ready
+ * have the highest IDs, i.e. a table scan in ID order would have to read everything else first. each operation gives
+ * the batch straight back, so that the same commands are ready every time.
+ * the time should hardly grow with the backlog on MySQL. H2 doesn't use "LOCKED IS NULL" to bound its search of
+ * IDX_COMMAND_LANE_PARTITION, so here it grows with the number of unlocked rows, which is why this is a benchmark
+ * and not a test with a time limit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PollingBenchmark {
+
+    private static final int NUM_READY = 100;
+
+    @Param({"10000", "1000000"})
+    public int backlog;
+
+    private BenchmarkDatabase db;
+
+    private EntityManager em;
+
+    private CommandRepository repo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        db = new BenchmarkDatabase();
+        em = db.createEntityManager();
+        seed();
+        repo = new CommandRepository();
+        repo.em = em;
+        repo.logger = NOPLogger.NOP_LOGGER;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        em.close();
+        db.close();
+    }
+
+    @Benchmark
+    public int poll() {
+        em.getTransaction().begin();
+        List<Command> cmds = repo.lockCommands(10);
+        em.getTransaction().commit();
+
+        if (!cmds.isEmpty()) {
+            List<Long> ids = cmds.stream().map(Command::getId).collect(Collectors.toList());
+            em.getTransaction().begin();
+            em.createNativeQuery("UPDATE T_COMMAND SET LOCKED = NULL, OWNER = NULL WHERE ID IN (:ids)")
+                    .setParameter("ids", ids)
+                    .executeUpdate();
+            em.getTransaction().commit();
+        }
+        em.clear();
+        return cmds.size();
+    }
+
+    private void seed() {
+        Timestamp locked = Timestamp.valueOf(LocalDateTime.now());
+        Timestamp later = Timestamp.valueOf(LocalDateTime.now().plusYears(1));
+        em.getTransaction().begin();
+        em.unwrap(Session.class).doWork(conn -> {
+            String sql = "INSERT INTO T_COMMAND (COMMAND, ATTEMPTS, IDEMPOTENCY_ID, CONTEXT, LOCKED, OWNER, NEXT_ATTEMPT_AT) VALUES (?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < backlog; i++) {
+                    boolean ready = i >= backlog - NUM_READY;
+                    boolean failed = !ready && i % 2 == 0;
+                    ps.setString(1, BenchmarkContexts.COMMAND_NAME);
+                    ps.setInt(2, failed ? 1 : 0);
+                    ps.setString(3, UUID.randomUUID().toString());
+                    ps.setString(4, "{}");
+                    ps.setTimestamp(5, ready || failed ? null : locked);
+                    ps.setString(6, ready || failed ? null : "seed:1");
+                    ps.setTimestamp(7, failed ? later : locked);
+                    ps.addBatch();
+                    if (i % 1000 == 999) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+        });
+        em.getTransaction().commit();
+    }
+}
@@ -0,0 +1,66 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * releasing a backlog of timed out commands with {@link CommandRepository#unlockCommands(LocalDateTime, int)},
+ * in chunks of various sizes, each in its own transaction, like the timer does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UnlockBenchmark {
+
+    private static final int BACKLOG = 10000;
+
+    @Param({"100", "1000", "10000"})
+    public int chunkSize;
+
+    private BenchmarkDatabase db;
+
+    private EntityManager em;
+
+    private CommandRepository repo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        db = new BenchmarkDatabase();
+        db.seed(BACKLOG, BenchmarkContexts.COMMAND_NAME, "{}", null, true);
+        em = db.createEntityManager();
+        repo = new CommandRepository();
+        repo.em = em;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        em.close();
+        db.close();
+    }
+
+    /** unlocking takes milliseconds, so relocking before each invocation doesn't distort the result */
+    @Setup(Level.Invocation)
+    public void lockEverything() {
+        db.execute("UPDATE T_COMMAND SET LOCKED = TIMESTAMP '2000-01-01 00:00:00', OWNER = 'seed:1'");
+    }
+
+    @Benchmark
+    public int unlockTimedOut() {
+        LocalDateTime lockedBefore = LocalDateTime.now();
+        int count = 0;
+        int unlocked;
+        do {
+            em.getTransaction().begin();
+            unlocked = repo.unlockCommands(lockedBefore, chunkSize);
+            em.getTransaction().commit();
+            count += unlocked;
+        } while (unlocked >= chunkSize);
+        return count;
+    }
+}
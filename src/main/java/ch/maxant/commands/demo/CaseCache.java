@@ -0,0 +1,119 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.commands.CommandMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * cases by number, since they are read far more often than they are written. holds at most
+ * <code>cases.cache.size</code> cases, evicting the least recently used, each for at most
+ * <code>cases.cache.ttl</code> milliseconds. changes made by this instance invalidate the case once they are
+ * committed, see {@link ClaimService#mergeCase(Case, Long)}, so the TTL only bounds how long changes made by other
+ * instances take to show up here. the cached cases are shared, so treat them as read only.
+ *
+ * hits and misses are counted in <code>cases.cache{result}</code>, see <code>GET /metrics</code>.
+ */
+@ApplicationScoped
+public class CaseCache {
+
+    @Inject
+    CommandMetrics metrics;
+
+    int maxSize = Integer.getInteger("cases.cache.size", 1000);
+
+    long ttl = Long.getLong("cases.cache.ttl", 5000L);
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) { //access order, i.e. LRU
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CaseCache.Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /** incremented by every invalidation, so that a case which was loaded before it was invalidated isn't cached */
+    private long invalidations;
+
+    private Counter hits;
+
+    private Counter misses;
+
+    @PostConstruct
+    public void init() {
+        hits = Counter.builder("cases.cache").description("case lookups").tag("result", "hit").register(metrics.getRegistry());
+        misses = Counter.builder("cases.cache").description("case lookups").tag("result", "miss").register(metrics.getRegistry());
+        Gauge.builder("cases.cache.size", this, CaseCache::size).description("cases in the cache").register(metrics.getRegistry());
+    }
+
+    /**
+     * @param loader called if the case isn't cached, or has expired. may return null, which isn't cached, so that
+     *               a case shows up as soon as it is created.
+     */
+    public Case get(long nr, LongFunction<Case> loader) {
+        long now = clock.getAsLong();
+        long generation;
+        synchronized (entries) {
+            Entry entry = entries.get(nr);
+            if (entry != null && entry.expiresAt > now) {
+                hits.increment();
+                return entry.value;
+            }
+            generation = invalidations;
+        }
+        misses.increment();
+
+        //not while holding the lock, so that lookups of other cases don't have to wait for the database
+        Case loaded = loader.apply(nr);
+        if (loaded != null) {
+            synchronized (entries) {
+                if (generation == invalidations) {
+                    entries.put(nr, new Entry(loaded, now + ttl));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public void invalidate(long nr) {
+        synchronized (entries) {
+            invalidations++;
+            entries.remove(nr);
+        }
+    }
+
+    /**
+     * once the transaction which changed the case has finished, so that it can't be cached again in its old form
+     * in the meantime. fired by {@link ClaimService#mergeCase(Case, Long)}.
+     */
+    public void onChanged(@Observes(during = TransactionPhase.AFTER_COMPLETION) Case changed) {
+        invalidate(changed.getNr());
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Entry {
+        private final Case value;
+        private final long expiresAt;
+
+        private Entry(Case value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
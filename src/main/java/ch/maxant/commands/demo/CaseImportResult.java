@@ -0,0 +1,65 @@
+package ch.maxant.commands.demo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/** what happened to one of the cases posted to <code>POST /cases/bulk</code>, see {@link CaseImporter} */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CaseImportResult {
+
+    public enum Status {
+        CREATED, UPDATED, FAILED
+    }
+
+    /** the position of the case in the input, starting at 0 */
+    private int index;
+
+    /** null if the case couldn't even be read */
+    private Long nr;
+
+    private Status status;
+
+    /** the new version of the case, i.e. its ETag. null if it failed */
+    private Long version;
+
+    private String error;
+
+    CaseImportResult(Long nr, Status status, Long version, String error) {
+        this.nr = nr;
+        this.status = status;
+        this.version = version;
+        this.error = error;
+    }
+
+    static CaseImportResult written(long nr, boolean created, long version) {
+        return new CaseImportResult(nr, created ? Status.CREATED : Status.UPDATED, version, null);
+    }
+
+    static CaseImportResult failed(Long nr, String error) {
+        return new CaseImportResult(nr, Status.FAILED, null, error);
+    }
+
+    CaseImportResult at(int index) {
+        this.index = index;
+        return this;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Long getNr() {
+        return nr;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,143 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.jaxrs.JacksonConfig;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * imports cases from a JSON array, or from newline delimited JSON (one case per line), as they are streamed in,
+ * without ever holding more than a batch of <code>cases.bulk.batch.size</code> in memory. each batch is written by
+ * {@link ClaimService#mergeCases(List)} in a transaction of its own, and the result for each case is written out
+ * as a line of JSON, in the same order as the input, as soon as its batch has been committed. a case which can't
+ * be read or written doesn't stop the rest, unless the input isn't JSON any more, since there is no telling where
+ * the next case starts. each element must have a number, since it is what cases are matched by.
+ */
+@ApplicationScoped
+public class CaseImporter {
+
+    /** the length of the DESCRIPTION column */
+    private static final int MAX_DESCRIPTION = 100;
+
+    @Inject
+    ClaimService service;
+
+    @Inject
+    Logger logger;
+
+    int batchSize = Math.max(1, Integer.getInteger("cases.bulk.batch.size", 100));
+
+    private final ObjectMapper mapper = JacksonConfig.newObjectMapper();
+
+    private final ObjectWriter resultWriter = mapper.writerFor(CaseImportResult.class);
+
+    /** @return how many cases were read, including those which failed */
+    public int importCases(InputStream in, OutputStream out) throws IOException {
+        //each element is a case which can be written, or the result saying why it can't
+        List<Object> batch = new ArrayList<>(batchSize);
+        int index = 0;
+        //read as trees, so that a missing number can be told apart from 0, and so that an element which isn't a case
+        //doesn't leave the parser somewhere in the middle of it
+        try (MappingIterator<JsonNode> elements = mapper.readerFor(JsonNode.class).readValues(in)) {
+            while (true) {
+                try {
+                    if (!elements.hasNextValue()) {
+                        break;
+                    }
+                    batch.add(toCase(elements.nextValue()));
+                } catch (JsonParseException e) {
+                    batch.add(CaseImportResult.failed(null, "Not valid JSON: " + e.getOriginalMessage()));
+                    index = write(batch, index, out);
+                    return index;
+                }
+                if (batch.size() == batchSize) {
+                    index = write(batch, index, out);
+                }
+            }
+        }
+        return write(batch, index, out);
+    }
+
+    /** @return the case, or the result saying why it can't be written */
+    private Object toCase(JsonNode element) {
+        if (!element.isObject()) {
+            return CaseImportResult.failed(null, "Not a case: expected an object");
+        }
+        if (!element.hasNonNull("nr")) {
+            return CaseImportResult.failed(null, "Not a case: nr is missing");
+        }
+        Case insuranceCase;
+        try {
+            insuranceCase = mapper.treeToValue(element, Case.class);
+        } catch (JsonProcessingException e) {
+            return CaseImportResult.failed(null, "Not a case: " + e.getOriginalMessage());
+        }
+        String invalid = validate(insuranceCase);
+        return invalid == null ? insuranceCase : CaseImportResult.failed(insuranceCase.getNr(), invalid);
+    }
+
+    private static String validate(Case insuranceCase) {
+        if (insuranceCase.getDescription() != null && insuranceCase.getDescription().length() > MAX_DESCRIPTION) {
+            return "Description is longer than " + MAX_DESCRIPTION + " characters";
+        }
+        return null;
+    }
+
+    /**
+     * writes the cases in the batch, then their results, and empties it
+     * @param first the index of the first element of the batch
+     * @return the index of the element after the batch
+     */
+    private int write(List<Object> batch, int first, OutputStream out) throws IOException {
+        List<Case> cases = batch.stream()
+                .filter(o -> o instanceof Case)
+                .map(o -> (Case) o)
+                .collect(Collectors.toList());
+        List<CaseImportResult> written;
+        if (cases.isEmpty()) {
+            written = new ArrayList<>();
+        } else {
+            try {
+                written = service.mergeCases(cases);
+            } catch (RuntimeException e) {
+                //the whole batch was rolled back
+                logger.warn("Failed to import a batch of " + cases.size() + " cases, starting at index " + first, e);
+                String error = rootCause(e).getMessage();
+                written = cases.stream().map(c -> CaseImportResult.failed(c.getNr(), error)).collect(Collectors.toList());
+            }
+        }
+
+        Iterator<CaseImportResult> results = written.iterator();
+        int index = first;
+        for (Object o : batch) {
+            CaseImportResult result = o instanceof Case ? results.next() : (CaseImportResult) o;
+            out.write(resultWriter.writeValueAsBytes(result.at(index++)));
+            out.write('\n');
+        }
+        out.flush(); //so that the client sees progress
+        batch.clear();
+        return index;
+    }
+
+    private static Throwable rootCause(Throwable t) {
+        while (t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
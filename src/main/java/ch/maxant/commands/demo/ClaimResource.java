@@ -1,10 +1,19 @@
 package ch.maxant.commands.demo;
 
 import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.tracing.Traced;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.InputStream;
 
 @Path("/cases")
 @ApplicationScoped
@@ -13,18 +22,85 @@ public class ClaimResource {
     @Inject
     ClaimService service;
 
+    @Inject
+    CaseImporter importer;
+
+    /**
+     * the case's version is its ETag, so a client which sends it back in <code>If-None-Match</code> gets a 304 if
+     * the case hasn't changed, without it being serialised again.
+     */
     @GET
     @Path("case/{nr}")
     @Produces("application/json")
-    public Case getCase(@PathParam("nr") Long nr) {
-        return service.getCase(nr);
+    public Response getCase(@PathParam("nr") Long nr, @Context Request request) {
+        Case insuranceCase = service.getCase(nr);
+        if (insuranceCase == null) {
+            return Response.noContent().build();
+        }
+        EntityTag etag = etagOf(insuranceCase);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return Response.ok(insuranceCase).tag(etag).build();
     }
 
+    /**
+     * with <code>If-Match</code> set to the ETag the client read, the case is only changed if no one else has
+     * changed it since, otherwise the answer is 412 and the client should read it again. without it, the case is
+     * overwritten.
+     */
     @PUT
     @Path("case")
     @Produces("application/json")
-    public void putCase(Case insuranceCase) {
-        service.mergeCase(insuranceCase);
+    @Traced
+    public Response putCase(Case insuranceCase, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch) {
+        Long expectedVersion = null;
+        if (ifMatch != null && !"*".equals(ifMatch.trim())) {
+            expectedVersion = versionOf(ifMatch);
+            if (expectedVersion == null) {
+                return Response.status(Response.Status.PRECONDITION_FAILED).build(); //can't be one of ours
+            }
+        }
+        Case merged = service.mergeCase(insuranceCase, expectedVersion);
+        if (merged == null) {
+            return Response.status(Response.Status.PRECONDITION_FAILED).build();
+        }
+        return Response.noContent().tag(etagOf(merged)).build();
+    }
+
+    /**
+     * imports lots of cases at once, e.g. for migrations and nightly feeds, as a JSON array or as newline delimited
+     * JSON (one case per line). they are read and written as they are streamed in, and the result for each case,
+     * in the same order, is streamed back as newline delimited JSON. see {@link CaseImporter}
+     */
+    @POST
+    @Path("bulk")
+    @Consumes({MediaType.APPLICATION_JSON, "application/x-ndjson"})
+    @Produces("application/x-ndjson")
+    public Response importCases(InputStream in) {
+        StreamingOutput results = out -> importer.importCases(in, out);
+        return Response.ok(results).build();
+    }
+
+    private static EntityTag etagOf(Case insuranceCase) {
+        return new EntityTag(String.valueOf(insuranceCase.getVersion()));
+    }
+
+    /** @return the version in an ETag like <code>"3"</code> or <code>W/"3"</code>, or null if it isn't one */
+    static Long versionOf(String etag) {
+        String value = etag.trim();
+        if (value.startsWith("W/")) {
+            value = value.substring(2);
+        }
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
 }
@@ -1,11 +1,21 @@
 package ch.maxant.commands.demo;
 
 import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.tracing.Traced;
 
 import javax.ejb.Stateless;
+import javax.enterprise.event.Event;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
+import javax.persistence.OptimisticLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Stateless
 public class ClaimService {
@@ -16,7 +26,20 @@ public class ClaimService {
     @Inject
     TaskService taskService;
 
+    @Inject
+    CaseCache caseCache;
+
+    @Inject
+    Event<Case> caseChanged;
+
     public Case getCase(Long nr) {
+        if (nr == null) {
+            return null;
+        }
+        return caseCache.get(nr, this::findCase);
+    }
+
+    private Case findCase(long nr) {
         try{
             return em.createNamedQuery(Case.NQFindByNumber.NAME, Case.class)
                     .setParameter(Case.NQFindByNumber.PARAM_NR, nr)
@@ -26,10 +49,98 @@ public class ClaimService {
         }
     }
 
-    public void mergeCase(Case insuranceCase) {
-        em.merge(insuranceCase);
+    /**
+     * @param expectedVersion if not null, the case is only changed if it is still at this version, i.e. no one
+     *                        else has changed it since the caller read it. otherwise the changes overwrite whatever
+     *                        is there.
+     * @return the case, with its new version, or null if it wasn't changed because it isn't at the expected
+     * version (any more), in which case the transaction is rolled back
+     */
+    @Traced
+    public Case mergeCase(Case insuranceCase, Long expectedVersion) {
+        Case current = em.find(Case.class, insuranceCase.getId());
+        if (expectedVersion != null && (current == null || current.getVersion() != expectedVersion)) {
+            return null;
+        }
+        if (current != null) {
+            insuranceCase.setVersion(current.getVersion());
+        }
+
+        Case merged;
+        try {
+            merged = em.merge(insuranceCase);
+            em.flush(); //so that a concurrent change is detected here, rather than when committing, and we know the new version
+        } catch (OptimisticLockException e) {
+            //someone else changed it after we read it. the transaction is already marked for rollback
+            return null;
+        }
+        caseCache.invalidate(insuranceCase.getNr());
+        caseChanged.fire(insuranceCase); //and again once the transaction has completed, see CaseCache
 
         taskService.createTask(insuranceCase.getNr(), "Some text telling the user what to do...");
+        return merged;
+    }
+
+    /**
+     * writes a batch of cases, matching them to the existing ones by number, and creates their tasks, all in one
+     * transaction. the existing cases are read with one select, and their inserts and updates are sent to the
+     * database in JDBC batches (see <code>hibernate.jdbc.batch_size</code>), rather than a select plus a write per
+     * case as with {@link #mergeCase(Case, Long)}. the tasks' commands are only batched if they have a dedup key,
+     * see {@link ch.maxant.commands.demo.framework.commands.CommandService#persistCommands(List)}. only the description of an existing case is changed. a case which comes
+     * more than once is written each time, in order, so that each result has the version which that write created.
+     * @return the result for each case, in the same order
+     */
+    @Traced
+    public List<CaseImportResult> mergeCases(List<Case> cases) {
+        Map<Long, Case> existing = new HashMap<>();
+        em.createNamedQuery(Case.NQFindByNumbers.NAME, Case.class)
+                .setParameter(Case.NQFindByNumbers.PARAM_NRS, cases.stream().map(Case::getNr).collect(Collectors.toList()))
+                .getResultList()
+                .forEach(c -> existing.put(c.getNr(), c));
+
+        List<Case> written = new ArrayList<>(cases.size());
+        List<Boolean> created = new ArrayList<>(cases.size());
+        List<Long> versions = new ArrayList<>(cases.size());
+        Set<Long> unflushed = new HashSet<>();
+        for (Case insuranceCase : cases) {
+            if (!unflushed.add(insuranceCase.getNr())) {
+                //it comes again in the same batch, so write what we have first, so that each gets its own version
+                flush(written, versions);
+                unflushed.clear();
+                unflushed.add(insuranceCase.getNr());
+            }
+            Case current = existing.get(insuranceCase.getNr());
+            if (current == null) {
+                em.persist(insuranceCase);
+                existing.put(insuranceCase.getNr(), insuranceCase);
+                current = insuranceCase;
+            } else {
+                current.setDescription(insuranceCase.getDescription());
+            }
+            written.add(current);
+            created.add(current == insuranceCase);
+        }
+        flush(written, versions);
+
+        List<CaseImportResult> results = new ArrayList<>(cases.size());
+        for (int i = 0; i < written.size(); i++) {
+            results.add(CaseImportResult.written(written.get(i).getNr(), created.get(i), versions.get(i)));
+        }
+
+        List<Long> nrs = written.stream().map(Case::getNr).distinct().collect(Collectors.toList());
+        nrs.forEach(caseCache::invalidate);
+        existing.values().forEach(caseChanged::fire);
+
+        taskService.createTasks(nrs, "Some text telling the user what to do...");
+        return results;
+    }
+
+    /** writes the cases to the database, and records the versions of those which don't have one yet */
+    private void flush(List<Case> written, List<Long> versions) {
+        em.flush();
+        for (int i = versions.size(); i < written.size(); i++) {
+            versions.add(written.get(i).getVersion());
+        }
     }
 
 }
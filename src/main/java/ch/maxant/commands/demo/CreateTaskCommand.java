@@ -1,18 +1,19 @@
 package ch.maxant.commands.demo;
 
 import ch.maxant.commands.demo.framework.commands.ExecutableCommand;
-import com.fasterxml.jackson.databind.JsonNode;
+import ch.maxant.commands.demo.framework.tracing.Traced;
 
 import javax.ejb.Stateless;
 
 @Stateless
-public class CreateTaskCommand implements ExecutableCommand {
+@Traced
+public class CreateTaskCommand implements ExecutableCommand<CreateTaskContext> {
 
     public static final String NAME = "CreateTask";
 
     @Override
-    public void execute(String idempotencyId, JsonNode context) {
-        long caseNr = context.get("caseNr").longValue();
+    public void execute(String idempotencyId, CreateTaskContext context) {
+        long caseNr = context.getCaseNr();
         System.out.println("TODO CALL MICROSERVICE HERE: " + caseNr);
     }
 
@@ -20,4 +21,9 @@ public class CreateTaskCommand implements ExecutableCommand {
     public String getName() {
         return NAME;
     }
+
+    @Override
+    public Class<CreateTaskContext> getContextType() {
+        return CreateTaskContext.class;
+    }
 }
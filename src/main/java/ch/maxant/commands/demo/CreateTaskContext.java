@@ -0,0 +1,39 @@
+package ch.maxant.commands.demo;
+
+/**
+ * the context of a {@link CreateTaskCommand}.
+ *
+ * version 1 was written before contexts were versioned, so has no version property.
+ */
+public class CreateTaskContext {
+
+    public static final int CURRENT_VERSION = 2;
+
+    private int version = 1;
+
+    private long caseNr;
+
+    private String textForTask;
+
+    /** for deserialisation */
+    CreateTaskContext() {
+    }
+
+    public CreateTaskContext(long caseNr, String textForTask) {
+        this.version = CURRENT_VERSION;
+        this.caseNr = caseNr;
+        this.textForTask = textForTask;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getCaseNr() {
+        return caseNr;
+    }
+
+    public String getTextForTask() {
+        return textForTask;
+    }
+}
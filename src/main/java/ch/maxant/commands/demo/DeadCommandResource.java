@@ -0,0 +1,60 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.framework.commands.DeadCommand;
+import ch.maxant.commands.demo.framework.commands.DeadCommandRepository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/** for looking after commands which have been given up on */
+@Path("/commands/dead")
+@ApplicationScoped
+public class DeadCommandResource {
+
+    @Inject
+    DeadCommandRepository repo;
+
+    @GET
+    @Produces("application/json")
+    public List<DeadCommand> list(@QueryParam("command") String command,
+                                  @QueryParam("first") @DefaultValue("0") int first,
+                                  @QueryParam("max") @DefaultValue("100") int max) {
+        return repo.list(command, first, max);
+    }
+
+    /** @return how many were requeued */
+    @POST
+    @Path("requeue")
+    @Consumes("application/json")
+    @Produces("application/json")
+    public int requeue(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            throw new BadRequestException("Specify the IDs to requeue");
+        }
+        return repo.requeue(ids);
+    }
+
+    /**
+     * e.g. <code>DELETE /commands/dead?id=1&id=2</code> or <code>DELETE /commands/dead?diedBefore=2018-03-01T00:00:00</code>
+     * @return how many were purged
+     */
+    @DELETE
+    @Produces("application/json")
+    public int purge(@QueryParam("id") List<Long> ids, @QueryParam("diedBefore") String diedBefore) {
+        if (diedBefore != null) {
+            try {
+                return repo.purgeDiedBefore(LocalDateTime.parse(diedBefore));
+            } catch (DateTimeParseException e) {
+                throw new BadRequestException("diedBefore must be a local date time, e.g. 2018-03-01T00:00:00");
+            }
+        }
+        if (ids == null || ids.isEmpty()) {
+            throw new BadRequestException("Specify the IDs to purge, or diedBefore");
+        }
+        return repo.purge(ids);
+    }
+}
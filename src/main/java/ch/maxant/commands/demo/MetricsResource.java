@@ -0,0 +1,30 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.framework.commands.CommandMetrics;
+import ch.maxant.commands.demo.framework.commands.CommandRepository;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/** for prometheus to scrape */
+@Path("/metrics")
+@ApplicationScoped
+public class MetricsResource {
+
+    @Inject
+    CommandMetrics metrics;
+
+    @Inject
+    CommandRepository commandRepo;
+
+    /** the backlog is counted now, rather than on the hot path */
+    @GET
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public String scrape() {
+        metrics.updateBacklog(commandRepo.countByCommand());
+        return metrics.scrape();
+    }
+}
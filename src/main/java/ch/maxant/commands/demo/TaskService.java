@@ -1,10 +1,16 @@
 package ch.maxant.commands.demo;
 
 import ch.maxant.commands.demo.framework.commands.Command;
+import ch.maxant.commands.demo.framework.commands.CommandPriority;
 import ch.maxant.commands.demo.framework.commands.CommandService;
+import ch.maxant.commands.demo.framework.commands.ContextCodec;
+import ch.maxant.commands.demo.framework.commands.MergePolicy;
+import ch.maxant.commands.demo.framework.tracing.Traced;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
 
 @Stateless
 public class TaskService {
@@ -12,18 +18,40 @@ public class TaskService {
     @Inject
     CommandService commandService;
 
+    @Inject
+    ContextCodec contextCodec;
+
     /** will create a command which causes a task to be created in ARO, asynchronously, but robustly. */
+    @Traced
     public void createTask(long caseNr, String textForTask) {
-        String context = createContext(caseNr, textForTask);
-
-        Command command = new Command(CreateTaskCommand.NAME, context);
+        Command command = contextCodec.newCommand(CreateTaskCommand.NAME, new CreateTaskContext(caseNr, textForTask));
+        command.partitionBy(caseNr);
+        if (MergePolicy.isEnabled(CreateTaskCommand.NAME)) {
+            command.dedupBy(caseNr); //a case which is updated again before the task is created only needs one task
+        }
 
         commandService.persistCommand(command);
     }
 
-    private String createContext(long nr, String textForTask) {
-        //TODO use object mapper rather than build string ourselves...
-        return "{\"caseNr\": " + nr + ", \"textForTask\": \"" + textForTask + "\"}";
+    /**
+     * like {@link #createTask(long, String)}, for many cases at once, e.g. from a bulk import. they are claimed in
+     * the low priority lane, so that they don't hold up the tasks of cases which users are working on.
+     */
+    @Traced
+    public void createTasks(List<Long> caseNrs, String textForTask) {
+        boolean deduplicate = MergePolicy.isEnabled(CreateTaskCommand.NAME);
+        List<Command> commands = new ArrayList<>(caseNrs.size());
+        for (long caseNr : caseNrs) {
+            Command command = contextCodec.newCommand(CreateTaskCommand.NAME, new CreateTaskContext(caseNr, textForTask));
+            command.partitionBy(caseNr);
+            if (deduplicate) {
+                command.dedupBy(caseNr);
+            }
+            command.setPriority(CommandPriority.LOW);
+            commands.add(command);
+        }
+
+        commandService.persistCommands(commands);
     }
 
 }
@@ -0,0 +1,34 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.framework.tracing.InMemorySpanExporter;
+import ch.maxant.commands.demo.framework.tracing.Span;
+import ch.maxant.commands.demo.framework.tracing.Tracer;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import java.util.List;
+
+/** the most recent spans, when they are kept in memory, i.e. <code>tracing.exporter=memory</code> */
+@Path("/traces")
+@ApplicationScoped
+public class TraceResource {
+
+    @Inject
+    Tracer tracer;
+
+    /** @param traceId if not null, only the spans of that trace, otherwise all of them. oldest first. */
+    @GET
+    @Produces("application/json")
+    public List<Span> list(@QueryParam("traceId") String traceId) {
+        if (!(tracer.getExporter() instanceof InMemorySpanExporter)) {
+            throw new NotFoundException("Spans are only kept in memory when tracing.exporter=memory");
+        }
+        InMemorySpanExporter spans = (InMemorySpanExporter) tracer.getExporter();
+        return traceId == null ? spans.getSpans() : spans.getSpans(traceId);
+    }
+}
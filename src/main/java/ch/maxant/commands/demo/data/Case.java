@@ -8,7 +8,8 @@ import java.util.UUID;
 @Table(name = "T_CASE")
 @NamedQueries({
         @NamedQuery(name = Case.NQFindAll.NAME, query = Case.NQFindAll.QUERY),
-        @NamedQuery(name = Case.NQFindByNumber.NAME, query = Case.NQFindByNumber.QUERY)
+        @NamedQuery(name = Case.NQFindByNumber.NAME, query = Case.NQFindByNumber.QUERY),
+        @NamedQuery(name = Case.NQFindByNumbers.NAME, query = Case.NQFindByNumbers.QUERY)
 })
 public class Case {
 
@@ -23,6 +24,12 @@ public class Case {
         public static final String QUERY = "select c from Case c where c.nr = :" + PARAM_NR;
     }
 
+    public static class NQFindByNumbers {
+        public static final String NAME = "Case.findByNumbers";
+        public static final String PARAM_NRS = "nrs";
+        public static final String QUERY = "select c from Case c where c.nr in :" + PARAM_NRS;
+    }
+
     @Id
     @Column(name = "ID")
     private String id = UUID.randomUUID().toString();
@@ -36,6 +43,11 @@ public class Case {
     @Column(name = "CREATED")
     private LocalDateTime created;
 
+    /** incremented by every change, so that changes based on an old version fail, rather than being lost */
+    @Version
+    @Column(name = "VERSION", nullable = false)
+    private long version;
+
     @PrePersist
     public void prePersist(){
         this.created = LocalDateTime.now();
@@ -57,6 +69,15 @@ public class Case {
         return id;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    /** the version the changes in this detached case are based on, see <code>ClaimService#mergeCase</code> */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public void setDescription(String description) {
         this.description = description;
     }
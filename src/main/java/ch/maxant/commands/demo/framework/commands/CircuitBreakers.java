@@ -0,0 +1,163 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * one circuit breaker per type of command. after <code>commandservice.breaker.failures</code> failures in a row,
+ * the breaker opens, and commands of that type are left in the database, unclaimed and without losing an attempt,
+ * for <code>commandservice.breaker.wait</code> milliseconds. then it is half open, and a single command is let
+ * through as a probe. if that works, the breaker closes again, otherwise it waits again. both settings can be
+ * overridden per type, e.g. <code>commandservice.breaker.CreateTask.failures</code>.
+ *
+ * together with the concurrency limit per type in {@link CommandExecutor} (the bulkhead), this protects the service
+ * provider which is down, as well as our own threads and connections.
+ */
+@ApplicationScoped
+public class CircuitBreakers {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * @return true if a command of the given type may be executed now. if so, the caller must report the outcome,
+     * or call {@link #release(String)} if it doesn't execute it after all.
+     */
+    public boolean tryAcquire(String commandName) {
+        return breakerFor(commandName).tryAcquire(clock.getAsLong());
+    }
+
+    /** the command wasn't executed after all, e.g. because the executor was full */
+    public void release(String commandName) {
+        breakerFor(commandName).release();
+    }
+
+    public void onSuccess(String commandName) {
+        breakerFor(commandName).onSuccess();
+    }
+
+    public void onFailure(String commandName) {
+        breakerFor(commandName).onFailure(clock.getAsLong());
+    }
+
+    /** the types of command which would not be let through right now, so there is no point claiming them */
+    public Set<String> getBlockedCommands() {
+        long now = clock.getAsLong();
+        return breakers.entrySet().stream()
+                .filter(e -> e.getValue().isBlocked(now))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    public boolean isBlocked(String commandName) {
+        Breaker breaker = breakers.get(commandName);
+        return breaker != null && breaker.isBlocked(clock.getAsLong());
+    }
+
+    public State getState(String commandName) {
+        Breaker breaker = breakers.get(commandName);
+        return breaker == null ? State.CLOSED : breaker.getState();
+    }
+
+    /** how often the breaker for the given type has opened, since startup */
+    public long getTimesOpened(String commandName) {
+        Breaker breaker = breakers.get(commandName);
+        return breaker == null ? 0L : breaker.getTimesOpened();
+    }
+
+    public Set<String> getCommandNames() {
+        return breakers.keySet();
+    }
+
+    private Breaker breakerFor(String commandName) {
+        return breakers.computeIfAbsent(commandName, Breaker::new);
+    }
+
+    private static class Breaker {
+        private final int failureThreshold;
+        private final long wait;
+
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean probing;
+        private long timesOpened;
+
+        private Breaker(String commandName) {
+            failureThreshold = Integer.getInteger("commandservice.breaker." + commandName + ".failures",
+                    Integer.getInteger("commandservice.breaker.failures", 5));
+            wait = Long.getLong("commandservice.breaker." + commandName + ".wait",
+                    Long.getLong("commandservice.breaker.wait", 30000L));
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now < openUntil) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probing = false;
+                    return tryProbe();
+                case HALF_OPEN:
+                default:
+                    return tryProbe();
+            }
+        }
+
+        /** only one command at a time may find out whether the problem has gone */
+        private boolean tryProbe() {
+            if (probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void release() {
+            probing = false;
+        }
+
+        synchronized void onSuccess() {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            probing = false;
+        }
+
+        synchronized void onFailure(long now) {
+            consecutiveFailures++;
+            if (state == State.OPEN) {
+                return; //a command which was started before it opened. that doesn't make the wait any longer
+            }
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                timesOpened++;
+                state = State.OPEN;
+                openUntil = now + wait;
+                probing = false;
+            }
+        }
+
+        synchronized boolean isBlocked(long now) {
+            return (state == State.OPEN && now < openUntil) || (state == State.HALF_OPEN && probing);
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized long getTimesOpened() {
+            return timesOpened;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ch.maxant.commands.demo.framework.commands;
+
+/**
+ * how {@link CommandRepository#lockCommands(int)} reserves commands for this instance.
+ * configured using the system property <code>commandservice.claim.mode</code>.
+ */
+public enum ClaimMode {
+
+    /**
+     * plain "select for update". concurrent instances wait for each other, because they all try to lock the
+     * same first rows.
+     */
+    FOR_UPDATE,
+
+    /**
+     * "select for update skip locked", so that concurrent instances each get a different batch without waiting.
+     * falls back to {@link #FOR_UPDATE} if the database doesn't support it.
+     */
+    SKIP_LOCKED,
+
+    /**
+     * a single "update ... limit n" which stamps an owner token onto the batch, followed by a select of the rows
+     * with that token. two statements per batch, instead of a select plus one update per row.
+     * falls back to {@link #SKIP_LOCKED} if the database doesn't support it, and also where the database can skip
+     * locked rows but not in such an update (MySQL 8, H2 2.x), since concurrent instances would wait for each other.
+     */
+    UPDATE
+}
@@ -8,19 +8,70 @@ import java.util.UUID;
 @Table(name = "T_COMMAND")
 @NamedQueries({
         @NamedQuery(name = Command.NQSelectAllAvailable.NAME, query = Command.NQSelectAllAvailable.QUERY),
-        @NamedQuery(name = Command.NQSelectLocked.NAME, query = Command.NQSelectLocked.QUERY)
+        @NamedQuery(name = Command.NQSelectAllAvailableExcluding.NAME, query = Command.NQSelectAllAvailableExcluding.QUERY),
+        @NamedQuery(name = Command.NQSelectClaimed.NAME, query = Command.NQSelectClaimed.QUERY),
+        @NamedQuery(name = Command.NQDeleteByIds.NAME, query = Command.NQDeleteByIds.QUERY),
+        @NamedQuery(name = Command.NQCountByCommand.NAME, query = Command.NQCountByCommand.QUERY),
+        @NamedQuery(name = Command.NQSelectPending.NAME, query = Command.NQSelectPending.QUERY),
+        @NamedQuery(name = Command.NQSelectPendingByKeys.NAME, query = Command.NQSelectPendingByKeys.QUERY)
 })
 public class Command {
 
     public static class NQSelectAllAvailable {
         public static final String NAME = "Command.selectAll";
-        public static final String QUERY = "select c from Command c where c.attempts < " +
-                CommandService.MAX_NUM_RETRIES + " and c.locked is null order by c.id";
+        public static final String PARAM_NOW = "now";
+        public static final String PARAM_PRIORITY = "priority";
+        public static final String PARAM_SHIFT = "shift";
+        public static final String PARAM_NODES = "nodes";
+        public static final String PARAM_FROM = "partitionFrom";
+        public static final String PARAM_TO = "partitionTo";
+        public static final String QUERY = "select c from Command c where c.locked is null and c.priority = :" + PARAM_PRIORITY +
+                " and c.nextAttemptAt <= :" + PARAM_NOW +
+                " and mod(c.partitionKey + :" + PARAM_SHIFT + ", :" + PARAM_NODES + ") between :" + PARAM_FROM + " and :" + PARAM_TO +
+                " order by c.nextAttemptAt, c.id";
     }
 
-    public static class NQSelectLocked {
-        public static final String NAME = "Command.selectLocked";
-        public static final String QUERY = "select c from Command c where c.locked is not null and c.locked < ?1";
+    public static class NQSelectAllAvailableExcluding {
+        public static final String NAME = "Command.selectAllExcluding";
+        public static final String PARAM_NOW = "now";
+        public static final String PARAM_PRIORITY = "priority";
+        public static final String PARAM_SHIFT = "shift";
+        public static final String PARAM_NODES = "nodes";
+        public static final String PARAM_FROM = "partitionFrom";
+        public static final String PARAM_TO = "partitionTo";
+        public static final String PARAM_EXCLUDED = "excluded";
+        public static final String QUERY = "select c from Command c where c.locked is null and c.priority = :" + PARAM_PRIORITY +
+                " and c.nextAttemptAt <= :" + PARAM_NOW +
+                " and mod(c.partitionKey + :" + PARAM_SHIFT + ", :" + PARAM_NODES + ") between :" + PARAM_FROM + " and :" + PARAM_TO +
+                " and c.command not in :" + PARAM_EXCLUDED + " order by c.nextAttemptAt, c.id";
+    }
+
+    public static class NQSelectClaimed {
+        public static final String NAME = "Command.selectClaimed";
+        public static final String QUERY = "select c from Command c where c.owner = ?1 order by c.priority desc, c.id";
+    }
+
+    public static class NQDeleteByIds {
+        public static final String NAME = "Command.deleteByIds";
+        public static final String PARAM_IDS = "ids";
+        public static final String QUERY = "delete from Command c where c.id in :" + PARAM_IDS;
+    }
+
+    public static class NQCountByCommand {
+        public static final String NAME = "Command.countByCommand";
+        public static final String QUERY = "select c.command, count(c) from Command c group by c.command";
+    }
+
+    public static class NQSelectPending {
+        public static final String NAME = "Command.selectPending";
+        public static final String PARAM_DEDUP_KEY = "dedupKey";
+        public static final String QUERY = "select c from Command c where c.dedupKey = :" + PARAM_DEDUP_KEY;
+    }
+
+    public static class NQSelectPendingByKeys {
+        public static final String NAME = "Command.selectPendingByKeys";
+        public static final String PARAM_DEDUP_KEYS = "dedupKeys";
+        public static final String QUERY = "select c from Command c where c.dedupKey in :" + PARAM_DEDUP_KEYS;
     }
 
     @Id
@@ -36,6 +87,39 @@ public class Command {
     @Column(name = "LOCKED")
     private LocalDateTime locked = LocalDateTime.now();
 
+    /** which lane it is claimed in, see {@link CommandPriority} */
+    @Column(name = "PRIORITY", nullable = false)
+    private int priority = CommandPriority.NORMAL.getValue();
+
+    /**
+     * which logical partition it is in, see {@link CommandPartitions}. random unless it is partitioned by a
+     * business key using {@link #partitionBy(Object)}
+     */
+    @Column(name = "PARTITION_KEY", nullable = false, updatable = false)
+    private int partitionKey = CommandPartitions.randomPartition();
+
+    /**
+     * commands with the same key are merged while they are pending, see {@link #dedupBy(Object)}. cleared when it
+     * is claimed, so that a new one can be inserted while this one is executed.
+     */
+    @Column(name = "DEDUP_KEY", length = 200)
+    private String dedupKey;
+
+    /** when it was persisted, in order to measure how long it waits before it is started */
+    @Column(name = "CREATED", nullable = false, updatable = false)
+    private LocalDateTime created = LocalDateTime.now();
+
+    /** the command isn't claimed before this time, so that retries can back off */
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private LocalDateTime nextAttemptAt = LocalDateTime.now();
+
+    /**
+     * who reserved the command, when it was locked. unique per batch, so that a batch which was reserved
+     * using a single update statement can be read back. see {@link CommandRepository#lockCommands(int)}
+     */
+    @Column(name = "OWNER", length = 100)
+    private String owner;
+
     /**
      * an ID which is generated by the client which the service provider we are going to
      * call can use to implement idempotency. basically, if they get an ID theyve already seen
@@ -46,17 +130,38 @@ public class Command {
 
     /**
      * contains input parameters. serialised JSON. could include say a version number, so
-     * current software can deal with both old and new entries.
+     * current software can deal with both old and new entries. null if the context is stored in binary form.
      */
-    @Column(name = "CONTEXT", nullable = false, updatable = false)
+    @Column(name = "CONTEXT")
     private String context;
 
+    /**
+     * the trace context of whoever created it, so that its execution can be followed as part of the same trace.
+     * null if that wasn't sampled. see {@link ch.maxant.commands.demo.framework.tracing.Tracer}
+     */
+    @Column(name = "TRACE_PARENT", length = 55)
+    private String traceParent;
+
+    /**
+     * contains input parameters, in a compact binary form, prefixed with a byte saying which. null if the context
+     * is stored as text. see {@link ContextCodec}.
+     */
+    @Column(name = "CONTEXT_DATA")
+    private byte[] contextData;
+
     public Command() {
     }
 
     public Command(String command, String context) {
         this.command = command;
         this.context = context;
+        this.priority = CommandPriority.forCommand(command).getValue();
+    }
+
+    public Command(String command, byte[] contextData) {
+        this.command = command;
+        this.contextData = contextData;
+        this.priority = CommandPriority.forCommand(command).getValue();
     }
 
     public long getId() {
@@ -75,24 +180,94 @@ public class Command {
         return locked;
     }
 
+    public CommandPriority getPriority() {
+        return CommandPriority.of(priority);
+    }
+
+    /** overrides the priority configured for its type, e.g. for a bulk import */
+    public void setPriority(CommandPriority priority) {
+        this.priority = priority.getValue();
+    }
+
+    public int getPartitionKey() {
+        return partitionKey;
+    }
+
+    /** puts it in the same partition as other commands with the same business key, e.g. the number of a case */
+    public void partitionBy(Object businessKey) {
+        this.partitionKey = CommandPartitions.partitionFor(businessKey);
+    }
+
+    public String getDedupKey() {
+        return dedupKey;
+    }
+
+    /**
+     * while this command is pending, i.e. before it is claimed, further commands of the same type and with the
+     * same business key, e.g. the number of a case, are merged into it according to the type's {@link MergePolicy},
+     * rather than being executed too. such commands are executed by the poller, after the coalescing window,
+     * rather than straight away, so only use it for types where {@link MergePolicy#isEnabled(String)}.
+     */
+    public void dedupBy(Object businessKey) {
+        this.dedupKey = command + ":" + businessKey;
+    }
+
+    public LocalDateTime getCreated() {
+        return created;
+    }
+
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
     public String getIdempotencyId() {
         return idempotencyId;
     }
 
+    public String getOwner() {
+        return owner;
+    }
+
     public void resetLocked() {
         this.locked = null;
+        this.owner = null;
     }
 
-    public void lock() {
+    public void lock(String owner) {
         this.locked = LocalDateTime.now();
+        this.owner = owner;
+        this.dedupKey = null;
     }
 
     public void incrementAttempts() {
         this.attempts++;
     }
 
+    public void scheduleNextAttempt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
     public String getContext() {
         return context;
     }
 
+    public byte[] getContextData() {
+        return contextData;
+    }
+
+    public String getTraceParent() {
+        return traceParent;
+    }
+
+    public void setTraceParent(String traceParent) {
+        this.traceParent = traceParent;
+    }
+
+    /** takes the context, and trace, of the given command, which is being merged into this pending one */
+    void replaceContext(Command latest) {
+        this.context = latest.context;
+        this.contextData = latest.contextData;
+        this.traceParent = latest.traceParent;
+    }
+
 }
\ No newline at end of file
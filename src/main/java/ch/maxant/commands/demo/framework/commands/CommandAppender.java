@@ -0,0 +1,147 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.slf4j.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * group commit for {@link PersistMode#APPEND}. callers append commands and wait, while a single thread commits
+ * whatever has been appended in one transaction, so that under load the database does one commit for many
+ * commands, rather than one each. a batch is committed once it has <code>commandservice.append.batch.size</code>
+ * commands, or <code>commandservice.append.wait</code> milliseconds after its first one arrived, whichever comes
+ * first. the thread is only started when the first command is appended.
+ */
+@ApplicationScoped
+public class CommandAppender {
+
+    @Resource
+    ManagedThreadFactory threadFactory;
+
+    @Inject
+    CommandRepository commandRepo;
+
+    @Inject
+    CommandMetrics metrics;
+
+    @Inject
+    Logger logger;
+
+    int batchSize = Math.max(1, Integer.getInteger("commandservice.append.batch.size", 256));
+
+    long maxWait = Long.getLong("commandservice.append.wait", 2L);
+
+    private final BlockingQueue<Appended> queue = new LinkedBlockingQueue<>();
+
+    private Thread flusher;
+
+    private volatile boolean running;
+
+    /**
+     * blocks until the command has been committed, together with any others which were appended at about the
+     * same time.
+     * @throws RuntimeException whatever the commit failed with, in which case the command wasn't persisted
+     */
+    public void append(Command command) {
+        startIfNecessary();
+        Appended appended = new Appended(command);
+        queue.add(appended);
+        try {
+            appended.committed.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to append command " + command.getCommand(), e.getCause());
+        }
+    }
+
+    private synchronized void startIfNecessary() {
+        if (flusher == null) {
+            ThreadFactory factory = threadFactory != null ? threadFactory : Thread::new;
+            running = true;
+            flusher = factory.newThread(this::run);
+            flusher.setName("command-appender");
+            flusher.start();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        //no one is going to commit them any more
+        List<Appended> left = new ArrayList<>();
+        queue.drainTo(left);
+        left.forEach(a -> a.committed.completeExceptionally(new IllegalStateException("Shutting down")));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                flush(1000L);
+            } catch (InterruptedException e) {
+                //shutting down
+            } catch (Exception e) {
+                logger.error("Unexpected problem while committing appended commands", e);
+            }
+        }
+    }
+
+    /**
+     * waits up to <code>idleMillis</code> for a command to be appended, then up to <code>maxWait</code> for more,
+     * and commits them.
+     * @return how many commands were committed
+     */
+    int flush(long idleMillis) throws InterruptedException {
+        Appended first = queue.poll(idleMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return 0;
+        }
+        List<Appended> batch = new ArrayList<>(Math.min(batchSize, 16));
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            Appended next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+
+        long start = System.nanoTime();
+        try {
+            commandRepo.createAll(batch.stream().map(a -> a.command).collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            batch.forEach(a -> a.committed.completeExceptionally(e));
+            return 0;
+        }
+        metrics.appended(batch.size(), System.nanoTime() - start);
+        batch.forEach(a -> a.committed.complete(null));
+        return batch.size();
+    }
+
+    private static class Appended {
+        private final Command command;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        private Appended(Command command) {
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * the SQL used to claim commands isn't portable, so the bits which differ between databases live here.
+ * detected once from the JDBC metadata of the connection being used.
+ */
+public class CommandDialect {
+
+    enum Database {
+        MYSQL, POSTGRESQL, H2, OTHER
+    }
+
+    static final String PARAM_LOCKED = "locked";
+
+    static final String PARAM_OWNER = "owner";
+
+    static final String PARAM_NOW = "now";
+
+    static final String PARAM_EXCLUDED = "excluded";
+
+    static final String PARAM_PRIORITY = "priority";
+
+    static final String PARAM_SHIFT = "shift";
+
+    static final String PARAM_NODES = "nodes";
+
+    static final String PARAM_FROM = "partitionFrom";
+
+    static final String PARAM_TO = "partitionTo";
+
+    /** the order in which available commands in a lane are claimed, i.e. the order of the polling index */
+    private static final String DUE_FIRST = " ORDER BY NEXT_ATTEMPT_AT, ID";
+
+    private final Database database;
+
+    private final boolean skipLocked;
+
+    CommandDialect(Database database, boolean skipLocked) {
+        this.database = database;
+        this.skipLocked = skipLocked;
+    }
+
+    public static CommandDialect detect(DatabaseMetaData metaData) throws SQLException {
+        String product = metaData.getDatabaseProductName().toLowerCase();
+        int major = metaData.getDatabaseMajorVersion();
+        int minor = metaData.getDatabaseMinorVersion();
+
+        if (product.contains("mysql")) {
+            return new CommandDialect(Database.MYSQL, major >= 8);
+        } else if (product.contains("postgres")) {
+            return new CommandDialect(Database.POSTGRESQL, major > 9 || (major == 9 && minor >= 5));
+        } else if (product.contains("h2")) {
+            return new CommandDialect(Database.H2, major >= 2);
+        } else {
+            return new CommandDialect(Database.OTHER, false);
+        }
+    }
+
+    Database getDatabase() {
+        return database;
+    }
+
+    /** can the database skip rows which are locked by other transactions, rather than wait for them? */
+    public boolean supportsSkipLocked() {
+        return skipLocked;
+    }
+
+    /**
+     * the conditions which a command must fulfil in order to be claimed, i.e. it is in the lane given by the
+     * parameter {@link #PARAM_PRIORITY}, due at the parameter {@link #PARAM_NOW}, and in one of the partitions
+     * selected by the parameters {@link #PARAM_SHIFT}, {@link #PARAM_NODES}, {@link #PARAM_FROM} and {@link #PARAM_TO}.
+     * optionally excluding those commands whose names are in the parameter {@link #PARAM_EXCLUDED}.
+     */
+    private String available(boolean excluding) {
+        return " WHERE LOCKED IS NULL" +
+                " AND PRIORITY = :" + PARAM_PRIORITY +
+                " AND NEXT_ATTEMPT_AT <= :" + PARAM_NOW +
+                " AND MOD(PARTITION_KEY + :" + PARAM_SHIFT + ", :" + PARAM_NODES + ") BETWEEN :" + PARAM_FROM + " AND :" + PARAM_TO +
+                (excluding ? " AND COMMAND NOT IN (:" + PARAM_EXCLUDED + ")" : "");
+    }
+
+    /**
+     * native equivalent of {@link Command.NQSelectAllAvailable}, except that rows locked by other instances are
+     * skipped rather than waited for, so that concurrent callers each end up with a disjoint batch.
+     */
+    String selectAvailableSkipLocked(int batchSize, boolean excluding) {
+        return "SELECT * FROM T_COMMAND" +
+                available(excluding) +
+                DUE_FIRST +
+                " LIMIT " + batchSize +
+                " FOR UPDATE SKIP LOCKED";
+    }
+
+    /** can a batch be reserved using a single update statement? see {@link #claimByUpdate(int, boolean)} */
+    public boolean supportsClaimByUpdate() {
+        return database != Database.OTHER;
+    }
+
+    /**
+     * does the update in {@link #claimByUpdate(int, boolean)} skip rows which are locked by other transactions?
+     * only where it selects its candidates in a sub-select, since "update ... limit" has no skip locked.
+     */
+    public boolean claimByUpdateSkipsLocked() {
+        return database == Database.POSTGRESQL && skipLocked;
+    }
+
+    /**
+     * native update which reserves up to <code>batchSize</code> available commands, by setting LOCKED to
+     * the parameter {@link #PARAM_LOCKED} and OWNER to the parameter {@link #PARAM_OWNER}.
+     */
+    String claimByUpdate(int batchSize, boolean excluding) {
+        // a claimed command is no longer pending, so clear its dedup key, to make room for a new one
+        String set = "UPDATE T_COMMAND SET LOCKED = :" + PARAM_LOCKED + ", OWNER = :" + PARAM_OWNER + ", DEDUP_KEY = NULL";
+        switch (database) {
+            case MYSQL:
+            case H2:
+                return set + available(excluding) + DUE_FIRST + " LIMIT " + batchSize;
+            case POSTGRESQL:
+                //no limit on updates, so use a sub-select, which can at least skip rows locked by others
+                return set + " WHERE ID IN (SELECT ID FROM T_COMMAND" + available(excluding) +
+                        DUE_FIRST + " LIMIT " + batchSize + (skipLocked ? " FOR UPDATE SKIP LOCKED" : "") + ")";
+            default:
+                throw new UnsupportedOperationException("claiming by update isn't supported for " + database);
+        }
+    }
+
+    /**
+     * native update which releases up to <code>maxRows</code> commands which were locked before the parameter
+     * {@link #PARAM_LOCKED}, without loading them. databases which can't limit an update release them all at once.
+     * a command is only released by the owner whose lock timed out, never one which has just been claimed again.
+     */
+    String unlockTimedOut(int maxRows) {
+        String set = "UPDATE T_COMMAND SET LOCKED = NULL, OWNER = NULL";
+        String timedOut = " WHERE LOCKED < :" + PARAM_LOCKED;
+        switch (database) {
+            case MYSQL:
+            case H2:
+                //the condition is checked against the row as it is once it has been locked for the update
+                return set + timedOut + " LIMIT " + maxRows;
+            case POSTGRESQL:
+                //the sub-select doesn't lock what it finds, so another instance may claim one of those rows before
+                //it is updated. only the row with the owner which was found is released, the new claim is kept.
+                return "UPDATE T_COMMAND c SET LOCKED = NULL, OWNER = NULL" +
+                        " FROM (SELECT ID, OWNER FROM T_COMMAND" + timedOut + " LIMIT " + maxRows + ") t" +
+                        " WHERE c.ID = t.ID AND c.OWNER IS NOT DISTINCT FROM t.OWNER";
+            default:
+                return set + timedOut;
+        }
+    }
+
+    /**
+     * native insert of an unlocked command, which does nothing if a pending command with the same DEDUP_KEY
+     * already exists, rather than failing on the unique index. the JDBC parameters are COMMAND, PRIORITY,
+     * PARTITION_KEY, CREATED, NEXT_ATTEMPT_AT, IDEMPOTENCY_ID, CONTEXT, CONTEXT_DATA, TRACE_PARENT and DEDUP_KEY,
+     * followed by DEDUP_KEY again. databases without an upsert check first, so two concurrent inserts can still
+     * collide there.
+     */
+    String insertIfAbsent() {
+        String insert = "INSERT INTO T_COMMAND (COMMAND, ATTEMPTS, PRIORITY, PARTITION_KEY, CREATED, NEXT_ATTEMPT_AT," +
+                " IDEMPOTENCY_ID, CONTEXT, CONTEXT_DATA, TRACE_PARENT, DEDUP_KEY)";
+        switch (database) {
+            case MYSQL:
+                //"updates" the key to the value it already has, i.e. does nothing
+                return insert + " VALUES (?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE DEDUP_KEY = ?";
+            case POSTGRESQL:
+                return insert + " VALUES (?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (DEDUP_KEY) DO UPDATE SET DEDUP_KEY = ?";
+            default:
+                return insert + " SELECT ?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ? FROM DUAL" +
+                        " WHERE NOT EXISTS (SELECT 1 FROM T_COMMAND WHERE DEDUP_KEY = ?)";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return database + (skipLocked ? " (skip locked)" : "");
+    }
+}
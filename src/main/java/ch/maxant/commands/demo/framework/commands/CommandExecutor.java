@@ -0,0 +1,137 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * runs commands on a bounded pool of worker threads, so that one slow command doesn't hold up the rest of its batch.
+ * it accepts at most <code>commandservice.executor.capacity</code> commands at a time (queued plus running), and
+ * at most <code>commandservice.executor.concurrency.&lt;command name&gt;</code> of any one type. the poller asks
+ * how much capacity is left before it claims anything, so it never claims more than can be run.
+ */
+@ApplicationScoped
+public class CommandExecutor {
+
+    @Resource
+    ManagedThreadFactory threadFactory;
+
+    private Executor executor;
+
+    private ExecutorService pool;
+
+    private int capacity;
+
+    /** queued plus running */
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final Map<String, Semaphore> permitsPerCommand = new ConcurrentHashMap<>();
+
+    /** for the container */
+    public CommandExecutor() {
+    }
+
+    /** for tests, which can pass in something simple like <code>Runnable::run</code> */
+    CommandExecutor(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    @PostConstruct
+    public void init() {
+        int threads = Integer.getInteger("commandservice.executor.threads", 10);
+        capacity = Integer.getInteger("commandservice.executor.capacity", 2 * threads);
+
+        //the queue doesn't need a bound, since we never accept more than the capacity
+        pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor = pool;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return false if the command wasn't accepted, because the executor is full, or because too many commands
+     * of the same type are already in flight. the caller remains responsible for it in that case.
+     */
+    public boolean submit(String commandName, Runnable task) {
+        Semaphore permits = permitsFor(commandName);
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        if (accepted.incrementAndGet() > capacity) {
+            accepted.decrementAndGet();
+            permits.release();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                running.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    running.decrementAndGet();
+                    accepted.decrementAndGet();
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            accepted.decrementAndGet();
+            permits.release();
+            return false;
+        }
+    }
+
+    private Semaphore permitsFor(String commandName) {
+        return permitsPerCommand.computeIfAbsent(commandName,
+                n -> new Semaphore(Integer.getInteger("commandservice.executor.concurrency." + n, capacity)));
+    }
+
+    /** how many more commands would be accepted right now */
+    public int getRemainingCapacity() {
+        return Math.max(0, capacity - accepted.get());
+    }
+
+    /** the types of command which have reached their concurrency limit, so there is no point claiming more of them */
+    public Set<String> getSaturatedCommands() {
+        return permitsPerCommand.entrySet().stream()
+                .filter(e -> e.getValue().availablePermits() == 0)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    /** accepted but not yet started */
+    public int getQueueDepth() {
+        return Math.max(0, accepted.get() - running.get());
+    }
+
+    /** currently running */
+    public int getInFlight() {
+        return running.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,18 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * the {@link CommandExecutor}'s worker threads have no transaction, so commands are executed through this bean,
+ * which gives each one a transaction of its own. if the command throws, its transaction is rolled back.
+ */
+@Stateless
+public class CommandInvoker {
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public <C> void execute(ExecutableCommand<C> ec, String idempotencyId, C context) {
+        ec.execute(idempotencyId, context);
+    }
+}
@@ -0,0 +1,167 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * timers, counters and gauges for the command pipeline, in prometheus format. the meters for each type of command
+ * are created the first time it is seen and then looked up by name, so that recording something on the hot path
+ * doesn't allocate anything.
+ */
+@ApplicationScoped
+public class CommandMetrics {
+
+    static final String TAG_COMMAND = "command";
+
+    private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+    private final Map<String, TypeMeters> metersPerCommand = new ConcurrentHashMap<>();
+
+    /** current values of the backlog gauges. see {@link #updateBacklog(Map)} */
+    private final Map<String, AtomicLong> backlog = new ConcurrentHashMap<>();
+
+    private final Timer claimLatency = Timer.builder("commands.claim")
+            .description("how long it takes to claim a batch of commands")
+            .register(registry);
+
+    private final DistributionSummary claimSize = DistributionSummary.builder("commands.claim.size")
+            .description("how many commands are claimed per batch")
+            .register(registry);
+
+    private final Timer appendCommit = Timer.builder("commands.append.commit")
+            .description("how long it takes to commit a batch of appended commands, see PersistMode.APPEND")
+            .register(registry);
+
+    private final DistributionSummary appendSize = DistributionSummary.builder("commands.append.size")
+            .description("how many appended commands are committed together")
+            .register(registry);
+
+    private final Counter unlocked = Counter.builder("commands.unlocked")
+            .description("commands which were released because their lock timed out")
+            .register(registry);
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /** everything, in the prometheus text format */
+    public String scrape() {
+        return registry.scrape();
+    }
+
+    public void claimed(int commands, long nanos) {
+        claimLatency.record(nanos, TimeUnit.NANOSECONDS);
+        claimSize.record(commands);
+    }
+
+    public void appended(int commands, long nanos) {
+        appendCommit.record(nanos, TimeUnit.NANOSECONDS);
+        appendSize.record(commands);
+    }
+
+    public void unlocked(int commands) {
+        unlocked.increment(commands);
+    }
+
+    /** a command is about to be executed. the first time, records how long it waited since it was created */
+    public void started(Command command) {
+        if (command.getAttempts() == 0) {
+            long millis = ChronoUnit.MILLIS.between(command.getCreated(), LocalDateTime.now());
+            metersFor(command.getCommand()).startDelay.record(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void executed(String commandName, long nanos, boolean success) {
+        TypeMeters meters = metersFor(commandName);
+        (success ? meters.succeeded : meters.failed).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void retried(String commandName) {
+        metersFor(commandName).retried.increment();
+    }
+
+    /** a new command was merged into a pending one with the same dedup key, rather than inserted */
+    public void merged(String commandName) {
+        metersFor(commandName).merged.increment();
+    }
+
+    /** the command was given up on, and moved to the dead letters */
+    public void died(String commandName) {
+        metersFor(commandName).died.increment();
+    }
+
+    /**
+     * sets the backlog gauges, e.g. from {@link CommandRepository#countByCommand()}. types which aren't in the
+     * map any more are set to zero.
+     */
+    public void updateBacklog(Map<String, Long> counts) {
+        backlog.forEach((name, value) -> {
+            if (!counts.containsKey(name)) {
+                value.set(0L);
+            }
+        });
+        counts.forEach((name, count) -> backlog.computeIfAbsent(name, n -> {
+            AtomicLong value = new AtomicLong();
+            Gauge.builder("commands.backlog", value, AtomicLong::get)
+                    .description("commands which are still to be done, including those being executed")
+                    .tag(TAG_COMMAND, n)
+                    .register(registry);
+            return value;
+        }).set(count));
+    }
+
+    private TypeMeters metersFor(String commandName) {
+        //get first, since computeIfAbsent can lock even when the key is there
+        TypeMeters meters = metersPerCommand.get(commandName);
+        return meters != null ? meters : metersPerCommand.computeIfAbsent(commandName, n -> new TypeMeters(n, registry));
+    }
+
+    private static class TypeMeters {
+        private final Timer startDelay;
+        private final Timer succeeded;
+        private final Timer failed;
+        private final Counter retried;
+        private final Counter died;
+        private final Counter merged;
+
+        private TypeMeters(String commandName, MeterRegistry registry) {
+            startDelay = Timer.builder("commands.start.delay")
+                    .description("how long commands wait between being persisted and being started")
+                    .tag(TAG_COMMAND, commandName)
+                    .register(registry);
+            succeeded = Timer.builder("commands.execution")
+                    .description("how long commands take to execute")
+                    .tags(TAG_COMMAND, commandName, "outcome", "success")
+                    .register(registry);
+            failed = Timer.builder("commands.execution")
+                    .description("how long commands take to execute")
+                    .tags(TAG_COMMAND, commandName, "outcome", "failure")
+                    .register(registry);
+            retried = Counter.builder("commands.retries")
+                    .description("failed commands which will be retried")
+                    .tag(TAG_COMMAND, commandName)
+                    .register(registry);
+            died = Counter.builder("commands.dead")
+                    .description("commands which were given up on and moved to the dead letters")
+                    .tag(TAG_COMMAND, commandName)
+                    .register(registry);
+            merged = Counter.builder("commands.merged")
+                    .description("commands which were merged into a pending one with the same dedup key, rather than inserted")
+                    .tag(TAG_COMMAND, commandName)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * commands are spread over <code>commandservice.partitions</code> logical partitions, in the PARTITION_KEY column.
+ * each instance claims from its own partitions first, i.e. those where the key modulo
+ * <code>commandservice.node.count</code> is its <code>commandservice.node.index</code>, and only helps out with the
+ * others when there isn't enough to do in its own. so instances mostly claim different rows, rather than all
+ * competing for the oldest ones.
+ *
+ * use more partitions than you expect to have instances, so that they can be shared out evenly as you add some.
+ * changing the number only affects new commands, and any instance will still claim old ones eventually.
+ */
+public final class CommandPartitions {
+
+    static final int PARTITIONS = Math.max(1, Integer.getInteger("commandservice.partitions", 16));
+
+    private CommandPartitions() {
+    }
+
+    /** @return the same partition for the same business key, e.g. so that commands for a case end up together */
+    public static int partitionFor(Object businessKey) {
+        int h = Objects.hashCode(businessKey);
+        return Math.floorMod(h ^ (h >>> 16), PARTITIONS);
+    }
+
+    static int randomPartition() {
+        return ThreadLocalRandom.current().nextInt(PARTITIONS);
+    }
+}
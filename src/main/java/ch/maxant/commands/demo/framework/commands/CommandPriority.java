@@ -0,0 +1,51 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the lane a command is claimed in. each type of command has one, set with
+ * <code>commandservice.priority.&lt;name&gt;</code>, NORMAL by default. see {@link PriorityLanes}.
+ */
+public enum CommandPriority {
+
+    LOW(0, 1), NORMAL(1, 3), HIGH(2, 6);
+
+    /** highest first */
+    static final CommandPriority[] LANES = {HIGH, NORMAL, LOW};
+
+    private static final Map<String, CommandPriority> PER_COMMAND = new ConcurrentHashMap<>();
+
+    /** what is stored in the PRIORITY column */
+    private final int value;
+
+    private final int defaultWeight;
+
+    CommandPriority(int value, int defaultWeight) {
+        this.value = value;
+        this.defaultWeight = defaultWeight;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    /** its share of each batch, relative to the other lanes. <code>commandservice.priority.weight.HIGH</code>, etc. */
+    int getWeight() {
+        return Integer.getInteger("commandservice.priority.weight." + name(), defaultWeight);
+    }
+
+    public static CommandPriority forCommand(String commandName) {
+        return PER_COMMAND.computeIfAbsent(commandName, n ->
+                valueOf(System.getProperty("commandservice.priority." + n, NORMAL.name())));
+    }
+
+    public static CommandPriority of(int value) {
+        for (CommandPriority priority : values()) {
+            if (priority.value == value) {
+                return priority;
+            }
+        }
+        throw new IllegalArgumentException("Unknown priority " + value);
+    }
+}
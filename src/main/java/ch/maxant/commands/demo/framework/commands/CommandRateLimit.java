@@ -0,0 +1,66 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * the token bucket which is shared by all instances, for a type of command which is rate limited across the
+ * cluster. see {@link RateLimiters} and {@link RateLimitRepository}.
+ */
+@Entity
+@Table(name = "T_COMMAND_RATE_LIMIT")
+public class CommandRateLimit {
+
+    @Id
+    @Column(name = "COMMAND")
+    private String command;
+
+    @Column(name = "TOKENS", nullable = false)
+    private double tokens;
+
+    @Column(name = "REFILLED", nullable = false)
+    private LocalDateTime refilled;
+
+    public CommandRateLimit() {
+    }
+
+    /** starts full */
+    public CommandRateLimit(String command, double burst, LocalDateTime now) {
+        this.command = command;
+        this.tokens = burst;
+        this.refilled = now;
+    }
+
+    /**
+     * tops the bucket up for the time which has passed since it was last refilled, and then takes as many whole
+     * tokens as are wanted and available. an instance whose clock is behind the last one to refill it simply
+     * adds nothing.
+     * @param rate tokens per second
+     * @return how many were taken
+     */
+    int take(int wanted, double rate, double burst, LocalDateTime now) {
+        if (now.isAfter(refilled)) {
+            tokens = Math.min(burst, tokens + Duration.between(refilled, now).toMillis() * rate / 1000.0);
+            refilled = now;
+        }
+        int taken = (int) Math.min(wanted, Math.floor(tokens));
+        tokens -= taken;
+        return taken;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public double getTokens() {
+        return tokens;
+    }
+
+    public LocalDateTime getRefilled() {
+        return refilled;
+    }
+}
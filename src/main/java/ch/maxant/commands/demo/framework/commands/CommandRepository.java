@@ -1,5 +1,6 @@
 package ch.maxant.commands.demo.framework.commands;
 
+import org.hibernate.Session;
 import org.slf4j.Logger;
 
 import javax.ejb.Stateless;
@@ -8,21 +9,70 @@ import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
-import java.time.Duration;
+import javax.persistence.Query;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 @Stateless
 public class CommandRepository {
 
+    /** identifies this instance in the OWNER column */
+    private static final String NODE_ID = System.getProperty("commandservice.node.id", UUID.randomUUID().toString());
+
+    private static final AtomicLong CLAIM_SEQUENCE = new AtomicLong();
+
+    /**
+     * this instance claims from the partitions p where p % <code>commandservice.node.count</code> is
+     * <code>commandservice.node.index</code> first. see {@link CommandPartitions}
+     */
+    private static final int NODE_INDEX = Integer.getInteger("commandservice.node.index", 0);
+
+    private static final int NODE_COUNT = Integer.getInteger("commandservice.node.count", 1);
+
+    /** shared by all instances of the bean, so that the lanes get their share over successive batches */
+    private static final PriorityLanes PRIORITY_LANES = new PriorityLanes();
+
     @Inject
     EntityManager em;
 
     @Inject
     Logger logger;
 
+    ClaimMode claimMode = ClaimMode.valueOf(System.getProperty("commandservice.claim.mode", ClaimMode.UPDATE.name()));
+
+    String nodeId = NODE_ID;
+
+    PriorityLanes priorityLanes = PRIORITY_LANES;
+
+    int nodeIndex = NODE_INDEX;
+
+    int nodeCount = NODE_COUNT;
+
+    CommandDialect dialect;
+
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public List<Command> lockCommands(int batchSize) {
+        return lockCommands(batchSize, Collections.emptySet());
+    }
+
+    /**
+     * @param excludedCommands names of commands which should not be claimed, e.g. because this instance is
+     *                         already running as many of them as it is allowed to.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<Command> lockCommands(int batchSize, Collection<String> excludedCommands) {
         // We need to lock some rows so that no other instances of this microservice try
         // to handle them.
         //
@@ -31,44 +81,361 @@ public class CommandRepository {
         // WARNING: DOES NOT WORK PROPERLY IN ORACLE!! see "for update" at
         // https://docs.jboss.org/hibernate/orm/5.2/userguide/html_single/chapters/locking/Locking.html
 
-        List<Command> commands = em.createNamedQuery(Command.NQSelectAllAvailable.NAME, Command.class)
-                .setMaxResults(batchSize)
-                .setLockMode(LockModeType.PESSIMISTIC_WRITE) //for update = locked until commit
-                .getResultList();
+        String owner = nextOwnerToken();
+        LocalDateTime now = LocalDateTime.now();
+        boolean byUpdate = effectiveClaimMode() == ClaimMode.UPDATE;
 
-        commands.forEach(c -> {
-            c.lock();
-        });
+        // each instance has its own partitions, so that instances mostly don't compete for the same rows. only if
+        // there isn't enough to do in them does it help the others.
+        List<Command> commands = new ArrayList<>();
+        int claimed = claimLanes(batchSize, false, excludedCommands, owner, now, byUpdate, commands);
+        if (claimed < batchSize && nodeCount > 1) {
+            claimed += claimLanes(batchSize - claimed, true, excludedCommands, owner, now, byUpdate, commands);
+        }
 
+        if (byUpdate) {
+            if (claimed == 0) {
+                return Collections.emptyList();
+            }
+            // the token is unique per batch, so we can read exactly that batch back, all lanes at once
+            return em.createNamedQuery(Command.NQSelectClaimed.NAME, Command.class)
+                    .setParameter(1, owner)
+                    .getResultList();
+        }
         return commands;
     }
 
+    /**
+     * weighted fair claiming: each lane gets its share of the batch, so that a huge backlog in one lane doesn't
+     * starve the others. then whatever a lane couldn't use goes to the lanes which filled their share, highest
+     * priority first, so that no capacity is wasted.
+     * @return how many were claimed
+     */
+    private int claimLanes(int batchSize, boolean stealing, Collection<String> excludedCommands, String owner,
+                           LocalDateTime now, boolean byUpdate, List<Command> commands) {
+        CommandPriority[] lanes = CommandPriority.LANES;
+        int[] quotas = priorityLanes.quotas(batchSize);
+        boolean[] filled = new boolean[lanes.length];
+        int claimed = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (quotas[i] > 0) {
+                int n = claim(lanes[i], quotas[i], stealing, excludedCommands, owner, now, byUpdate, commands);
+                filled[i] = n == quotas[i];
+                claimed += n;
+            }
+        }
+        for (int i = 0; i < lanes.length && claimed < batchSize; i++) {
+            if (filled[i] || quotas[i] == 0) {
+                claimed += claim(lanes[i], batchSize - claimed, stealing, excludedCommands, owner, now, byUpdate, commands);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * claims up to <code>max</code> available commands from one lane, either in this instance's partitions or,
+     * if <code>stealing</code>, in everyone else's.
+     * @param commands the claimed commands are added to it, unless they are claimed by update, in which case they
+     *                 need reading back using the owner token.
+     * @return how many were claimed
+     */
+    @SuppressWarnings("unchecked")
+    private int claim(CommandPriority lane, int max, boolean stealing, Collection<String> excludedCommands,
+                      String owner, LocalDateTime now, boolean byUpdate, List<Command> commands) {
+        boolean excluding = !excludedCommands.isEmpty();
+
+        // MOD(PARTITION_KEY + shift, nodes) is 0 for this instance's partitions and 1 to nodes - 1 for everyone
+        // else's, so the same statement can do both
+        int shift = nodeCount - nodeIndex;
+        int from = stealing ? 1 : 0;
+        int to = stealing ? nodeCount - 1 : 0;
+
+        if (byUpdate) {
+            // one statement stamps the whole batch, rather than selecting entities and letting hibernate
+            // flush an update per row.
+            Query claim = em.createNativeQuery(dialect().claimByUpdate(max, excluding))
+                    .setParameter(CommandDialect.PARAM_LOCKED, Timestamp.valueOf(now))
+                    .setParameter(CommandDialect.PARAM_OWNER, owner)
+                    .setParameter(CommandDialect.PARAM_PRIORITY, lane.getValue())
+                    .setParameter(CommandDialect.PARAM_NOW, Timestamp.valueOf(now))
+                    .setParameter(CommandDialect.PARAM_SHIFT, shift)
+                    .setParameter(CommandDialect.PARAM_NODES, nodeCount)
+                    .setParameter(CommandDialect.PARAM_FROM, from)
+                    .setParameter(CommandDialect.PARAM_TO, to);
+            if (excluding) {
+                claim.setParameter(CommandDialect.PARAM_EXCLUDED, excludedCommands);
+            }
+            return claim.executeUpdate();
+        }
+
+        if (!commands.isEmpty()) {
+            em.flush(); //so that the commands we already locked aren't selected again
+        }
+
+        List<Command> selected;
+        if (effectiveClaimMode() == ClaimMode.SKIP_LOCKED) {
+            // hibernate 5.0 has no lock option for skip locked, so use native SQL. instances now each get
+            // their own batch, rather than all waiting on the same first N rows.
+            Query select = em.createNativeQuery(dialect().selectAvailableSkipLocked(max, excluding), Command.class)
+                    .setParameter(CommandDialect.PARAM_PRIORITY, lane.getValue())
+                    .setParameter(CommandDialect.PARAM_NOW, Timestamp.valueOf(now))
+                    .setParameter(CommandDialect.PARAM_SHIFT, shift)
+                    .setParameter(CommandDialect.PARAM_NODES, nodeCount)
+                    .setParameter(CommandDialect.PARAM_FROM, from)
+                    .setParameter(CommandDialect.PARAM_TO, to);
+            if (excluding) {
+                select.setParameter(CommandDialect.PARAM_EXCLUDED, excludedCommands);
+            }
+            selected = select.getResultList();
+        } else if (excluding) {
+            selected = em.createNamedQuery(Command.NQSelectAllAvailableExcluding.NAME, Command.class)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_PRIORITY, lane.getValue())
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_NOW, now)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_SHIFT, shift)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_NODES, nodeCount)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_FROM, from)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_TO, to)
+                    .setParameter(Command.NQSelectAllAvailableExcluding.PARAM_EXCLUDED, excludedCommands)
+                    .setMaxResults(max)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE) //for update = locked until commit
+                    .getResultList();
+        } else {
+            selected = em.createNamedQuery(Command.NQSelectAllAvailable.NAME, Command.class)
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_PRIORITY, lane.getValue())
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_NOW, now)
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_SHIFT, shift)
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_NODES, nodeCount)
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_FROM, from)
+                    .setParameter(Command.NQSelectAllAvailable.PARAM_TO, to)
+                    .setMaxResults(max)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE) //for update = locked until commit
+                    .getResultList();
+        }
+
+        selected.forEach(c -> {
+            c.lock(owner);
+        });
+        commands.addAll(selected);
+        return selected.size();
+    }
+
+    /**
+     * the configured claim mode, or the one it falls back to if the database doesn't support it. an update which
+     * would wait for rows locked by other instances is only used if the database can't skip them any other way.
+     */
+    ClaimMode effectiveClaimMode() {
+        if (claimMode == ClaimMode.UPDATE && dialect().supportsClaimByUpdate()
+                && (dialect().claimByUpdateSkipsLocked() || !dialect().supportsSkipLocked())) {
+            return ClaimMode.UPDATE;
+        }
+        if (claimMode != ClaimMode.FOR_UPDATE && dialect().supportsSkipLocked()) {
+            return ClaimMode.SKIP_LOCKED;
+        }
+        return ClaimMode.FOR_UPDATE;
+    }
+
+    /** lazily detected, because we need a connection to find out what kind of database we are talking to */
+    CommandDialect dialect() {
+        if (dialect == null) {
+            dialect = em.unwrap(Session.class).doReturningWork(c -> CommandDialect.detect(c.getMetaData()));
+        }
+        return dialect;
+    }
+
+    /** unique per batch, but starts with the ID of this instance, so that you can see who has what */
+    String nextOwnerToken() {
+        return nodeId + ":" + CLAIM_SEQUENCE.incrementAndGet();
+    }
+
+    /** the command is owned by this instance until it has been executed, or the lock times out */
     public void create(Command command) {
+        command.lock(nextOwnerToken());
         em.persist(command);
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW) //in case caller already called setRollbackOnly, eg container
+    /** creates them all in a transaction of their own, see {@link CommandAppender} */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void createAll(List<Command> commands) {
+        commands.forEach(this::create);
+    }
+
+    /**
+     * inserts the command, unlocked, unless a command with the same dedup key is still pending, i.e. hasn't been
+     * claimed yet. either way, the pending command is returned, locked for update until the caller commits, so
+     * that it can be merged into without racing another caller or the poller.
+     * @return the given command if it was inserted, i.e. one with the same idempotency ID, otherwise the one
+     * which was already pending
+     */
+    public Command createOrFindPending(Command command) {
+        // the pending command can be claimed between the insert and the select, which clears its key, so try again
+        for (int i = 0; i < 3; i++) {
+            em.unwrap(Session.class).doWork(c -> {
+                try (PreparedStatement insert = c.prepareStatement(dialect().insertIfAbsent())) {
+                    bindInsertIfAbsent(insert, command);
+                    insert.executeUpdate();
+                }
+            });
+            List<Command> pending = em.createNamedQuery(Command.NQSelectPending.NAME, Command.class)
+                    .setParameter(Command.NQSelectPending.PARAM_DEDUP_KEY, command.getDedupKey())
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList();
+            if (!pending.isEmpty()) {
+                return pending.get(0);
+            }
+        }
+        throw new IllegalStateException("Unable to insert or find a pending command with dedup key " + command.getDedupKey());
+    }
+
+    /**
+     * like {@link #createOrFindPending(Command)}, for many commands at once: the inserts are sent in one JDBC batch,
+     * and the pending commands are read back, and locked, with one select.
+     * @return the pending command for each dedup key. a key is missing if its pending command was claimed in the
+     * meantime, in which case the caller can use {@link #createOrFindPending(Command)}
+     */
+    public Map<String, Command> createOrFindPending(List<Command> commands) {
+        em.unwrap(Session.class).doWork(c -> {
+            try (PreparedStatement insert = c.prepareStatement(dialect().insertIfAbsent())) {
+                for (Command command : commands) {
+                    bindInsertIfAbsent(insert, command);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        });
+        Map<String, Command> pending = new HashMap<>();
+        em.createNamedQuery(Command.NQSelectPendingByKeys.NAME, Command.class)
+                .setParameter(Command.NQSelectPendingByKeys.PARAM_DEDUP_KEYS,
+                        commands.stream().map(Command::getDedupKey).distinct().collect(Collectors.toList()))
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList()
+                .forEach(c -> pending.put(c.getDedupKey(), c));
+        return pending;
+    }
+
+    /** see {@link CommandDialect#insertIfAbsent()} */
+    private static void bindInsertIfAbsent(PreparedStatement insert, Command command) throws SQLException {
+        insert.setString(1, command.getCommand());
+        insert.setInt(2, command.getPriority().getValue());
+        insert.setInt(3, command.getPartitionKey());
+        insert.setTimestamp(4, Timestamp.valueOf(command.getCreated()));
+        insert.setTimestamp(5, Timestamp.valueOf(command.getNextAttemptAt()));
+        insert.setString(6, command.getIdempotencyId());
+        insert.setString(7, command.getContext());
+        insert.setBytes(8, command.getContextData());
+        insert.setString(9, command.getTraceParent());
+        insert.setString(10, command.getDedupKey());
+        insert.setString(11, command.getDedupKey());
+    }
+
+    /** it can be attempted again straight away */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public void resetLockAfterFailure(Command command) {
-        command = em.find(Command.class, command.getId());
-        command.resetLocked();
-        command.incrementAttempts();
+        resetLockAfterFailure(command, LocalDateTime.now(), null);
+    }
+
+    /**
+     * counts the failed attempt. if that was the last one, the command is moved to the dead letters.
+     * @param nextAttemptAt it won't be claimed again before this time
+     * @param error why it failed, recorded if it is moved to the dead letters. may be null.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW) //in case caller already called setRollbackOnly, eg container
+    public void resetLockAfterFailure(Command command, LocalDateTime nextAttemptAt, Throwable error) {
+        Command current = em.find(Command.class, command.getId());
+        if (current == null) {
+            return; //another instance took over after our lock timed out, and has already finished with it
+        }
+        if (!Objects.equals(current.getOwner(), command.getOwner())) {
+            //our lock timed out and another instance has reserved it since. leave it to them.
+            logger.warn("Not resetting command " + command.getId() + " since it is now owned by " + current.getOwner());
+            return;
+        }
+        current.incrementAttempts();
+        if (current.getAttempts() < CommandService.MAX_NUM_RETRIES) {
+            current.scheduleNextAttempt(nextAttemptAt);
+            current.resetLocked();
+        } else {
+            bury(current, "Failed " + current.getAttempts() + " times", error);
+        }
+    }
+
+    /**
+     * no more attempts will be made to execute the command, so it is moved to the dead letters, where someone
+     * can look into it.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void giveUp(Command command, String reason) {
+        Command current = em.find(Command.class, command.getId());
+        if (current != null) {
+            bury(current, reason, null);
+        }
+    }
+
+    /** moves the command to T_COMMAND_DEAD, in the same transaction, so it is in exactly one of the two tables */
+    private void bury(Command current, String reason, Throwable error) {
+        em.persist(new DeadCommand(current, reason, error));
+        em.remove(current);
+    }
+
+    /**
+     * gives the command back without counting an attempt, e.g. because this instance couldn't run it right now.
+     * does nothing if another instance has taken it over in the meantime.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void releaseLock(Command command) {
+        releaseLock(command, null);
+    }
+
+    /**
+     * like {@link #releaseLock(Command)}, but it won't be claimed again before the given time, e.g. because it
+     * is being rate limited.
+     * @param notBefore may be null, in which case it can be claimed again straight away
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void releaseLock(Command command, LocalDateTime notBefore) {
+        Command current = em.find(Command.class, command.getId());
+        if (current != null && Objects.equals(current.getOwner(), command.getOwner())) {
+            if (notBefore != null) {
+                current.scheduleNextAttempt(notBefore);
+            }
+            current.resetLocked();
+        }
     }
 
+    /** deletes it by ID, without loading it first */
     public void delete(Command command) {
-        command = em.find(Command.class, command.getId());
-        em.remove(command);
+        deleteAll(Collections.singletonList(command.getId()));
     }
 
-    public int unlockCommands(long timeout) {
-        LocalDateTime timeoutTime = LocalDateTime.now().minus(Duration.ofMillis(timeout));
-        int cnt = em.createNamedQuery(Command.NQSelectLocked.NAME, Command.class)
-                .setParameter(1, timeoutTime) //eg anything before 30 seconds ago, which is the same as anything older than 30 seconds
-                .getResultList()
-                .stream()
-                .peek(c -> c.resetLocked())
-                .mapToInt(c->1)
-                .sum();
-System.out.println("COUNT " + cnt + " UPDATED WITH LOCKED <  " + timeoutTime);
-        return cnt;
+    /** deletes them all using a single statement, without loading them first */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int deleteAll(Collection<Long> ids) {
+        return em.createNamedQuery(Command.NQDeleteByIds.NAME)
+                .setParameter(Command.NQDeleteByIds.PARAM_IDS, ids)
+                .executeUpdate();
+    }
+
+    /** @return how many commands of each type are in the table, i.e. still to do, including those being executed */
+    public Map<String, Long> countByCommand() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Object[] row : em.createNamedQuery(Command.NQCountByCommand.NAME, Object[].class).getResultList()) {
+            counts.put((String) row[0], (Long) row[1]);
+        }
+        return counts;
+    }
+
+    /**
+     * releases at most <code>maxRows</code> commands which were locked before the given time, using a single update
+     * rather than loading them. the owner is cleared together with the lock, but only for the owner whose lock
+     * timed out, so a command which another instance claims in the meantime stays theirs, and the instance which
+     * timed out can no longer reset or release it (see {@link #resetLockAfterFailure(Command, LocalDateTime, Throwable)}).
+     * commands which have been given up on aren't affected, since they have already been moved to the dead letters.
+     * call it repeatedly until it returns less than <code>maxRows</code>, so that a huge number of stuck commands,
+     * e.g. after an instance crashed, is released in chunks.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int unlockCommands(LocalDateTime lockedBefore, int maxRows) {
+        return em.createNativeQuery(dialect().unlockTimedOut(maxRows))
+                .setParameter(CommandDialect.PARAM_LOCKED, Timestamp.valueOf(lockedBefore))
+                .executeUpdate();
     }
 }
@@ -1,7 +1,7 @@
 package ch.maxant.commands.demo.framework.commands;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ch.maxant.commands.demo.framework.tracing.Span;
+import ch.maxant.commands.demo.framework.tracing.Tracer;
 import org.slf4j.Logger;
 
 import javax.annotation.PostConstruct;
@@ -13,8 +13,19 @@ import javax.enterprise.event.TransactionPhase;
 import javax.enterprise.inject.Any;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 @Singleton
 @Startup
@@ -37,9 +48,12 @@ public class CommandService {
 
     @Any
     @Inject
-    Instance<ExecutableCommand> executors;
+    Instance<ExecutableCommand<?>> executors;
 
-    ObjectMapper objectMapper = new ObjectMapper();
+    ExecutableCommandRegistry registry;
+
+    @Inject
+    ContextCodec contextCodec;
 
     @Inject
     Event<Command> event;
@@ -47,15 +61,78 @@ public class CommandService {
     @Inject
     CommandRepository commandRepo;
 
+    @Inject
+    CommandExecutor commandExecutor;
+
+    @Inject
+    CommandInvoker commandInvoker;
+
+    @Inject
+    RetryBackoff retryBackoff;
+
+    @Inject
+    CircuitBreakers circuitBreakers;
+
+    @Inject
+    RateLimiters rateLimiters;
+
+    @Inject
+    CommandMetrics metrics;
+
+    @Inject
+    Tracer tracer;
+
+    @Inject
+    CommandAppender commandAppender;
+
+    PersistMode persistMode = PersistMode.valueOf(System.getProperty("commandservice.persist.mode", PersistMode.TRANSACTIONAL.name()));
+
+    /** at most this many commands are deleted by one statement, so that the IN list stays a sensible size */
+    int deleteBatchSize = Integer.getInteger("commandservice.delete.batch.size", 500);
+
+    /** IDs of commands which were executed successfully and need deleting */
+    private final Queue<Long> completed = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock deleteLock = new ReentrantLock();
+
     private Timer retryCommandsTimer;
 
+    private long minPollDelay;
+
+    private long maxPollDelay;
+
+    /** how long to wait before polling again. doubles while there is nothing to do, up to the maximum */
+    private long pollDelay;
+
+    /** when the retry timer is due to fire, in epoch millis */
+    private long nextPollAt;
+
     @PostConstruct
     public void init() {
-        //use a timer to handle commands that need to be retried
-        retryCommandsTimer = timerService.createIntervalTimer(5000L, 5000L, new TimerConfig(RETRY_COMMANDS, false));
+        //fails the deployment if two executors have the same name
+        registry = new ExecutableCommandRegistry(executors);
+        logger.info("Commands which can be executed: " + registry.getNames());
+        if (persistMode == PersistMode.APPEND) {
+            List<String> deduplicated = registry.getNames().stream()
+                    .filter(MergePolicy::isEnabled)
+                    .sorted()
+                    .collect(Collectors.toList());
+            if (!deduplicated.isEmpty()) {
+                logger.warn("Commands with a dedup key are persisted in the caller's transaction rather than appended, so " +
+                        PersistMode.APPEND + " doesn't apply to " + deduplicated);
+            }
+        }
+
+        minPollDelay = Long.getLong("commandservice.poll.delay.min", 100L);
+        maxPollDelay = Math.max(minPollDelay, Long.getLong("commandservice.poll.delay.max", 30000L));
+        pollDelay = minPollDelay;
+
+        //use a timer to handle commands that need to be retried. it is rescheduled after every poll, depending on what it found
+        scheduleRetry(5000L);
 
         //use a timer to unlock commands which are stuck, i.e. not finished by other instances of this app
-        timerService.createIntervalTimer(30000L, 30000L, new TimerConfig(UNLOCK_TIMEDOUT_COMMANDS, false));
+        long unlockInterval = Long.getLong("commandservice.unlock.interval", 30000L);
+        timerService.createIntervalTimer(unlockInterval, unlockInterval, new TimerConfig(UNLOCK_TIMEDOUT_COMMANDS, false));
     }
 
     /**
@@ -65,7 +142,7 @@ public class CommandService {
     public void timeout(Timer t) {
         String timer = (String) t.getInfo();
         if (RETRY_COMMANDS.equals(timer)) {
-            retryCommands();
+            pollForCommands();
         } else if (UNLOCK_TIMEDOUT_COMMANDS.equals(timer)) {
             unlockTimedoutCommands();
         } else {
@@ -73,16 +150,92 @@ public class CommandService {
         }
     }
 
-    private void retryCommands() {
+    private void pollForCommands() {
+        long delay = pollDelay;
+        try {
+            delay = retryCommands();
+        } finally {
+            //whatever happens, poll again
+            scheduleRetry(delay);
+        }
+    }
+
+    private void scheduleRetry(long delay) {
+        if (retryCommandsTimer != null) {
+            try {
+                retryCommandsTimer.cancel();
+            } catch (NoSuchObjectLocalException e) {
+                //it already fired
+            }
+        }
+        retryCommandsTimer = timerService.createSingleActionTimer(delay, new TimerConfig(RETRY_COMMANDS, false));
+        nextPollAt = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * a command was just committed by this instance, but couldn't be executed straight away, so start polling
+     * often again.
+     */
+    private void wakeUp() {
+        if (pollDelay > minPollDelay) {
+            pollDelay = minPollDelay;
+            scheduleRetry(pollDelay);
+        }
+    }
+
+    /**
+     * a command was just committed by this instance, which won't be due until the given time, e.g. because it is
+     * waiting for others to be merged into it, so make sure that the poller doesn't sleep for much longer than that.
+     */
+    private void wakeUpAt(LocalDateTime due) {
+        long delay = Math.max(0L, Duration.between(LocalDateTime.now(), due).toMillis());
+        if (System.currentTimeMillis() + delay < nextPollAt) {
+            scheduleRetry(delay);
+        }
+    }
+
+    /** @return how long to wait before polling again */
+    private long retryCommands() {
         Integer batchSize = Integer.getInteger("commandservice.batch.size", 10);
-        List<Command> commands = commandRepo.lockCommands(batchSize); //includes commit
-        commands.forEach(c -> executeCommand(c)); //execute commands
 
-        if (commands.size() == batchSize) {
+        //never claim more than the executor can accept, nor commands which it isn't allowed to run any more of,
+        //nor commands whose circuit breaker is open or which are being rate limited
+        int toClaim = Math.min(batchSize, commandExecutor.getRemainingCapacity());
+        if (toClaim == 0) {
+            logger.debug("Executor is full, not claiming any commands. Queue depth: " + commandExecutor.getQueueDepth() +
+                    ", in flight: " + commandExecutor.getInFlight());
+            return minPollDelay; //doesn't cost a query, and there will be room again soon
+        }
+        Set<String> excluded = new HashSet<>(commandExecutor.getSaturatedCommands());
+        excluded.addAll(circuitBreakers.getBlockedCommands());
+        excluded.addAll(rateLimiters.getLimitedCommands());
+        long start = System.nanoTime();
+        List<Command> commands = commandRepo.lockCommands(toClaim, excluded); //includes commit
+        metrics.claimed(commands.size(), System.nanoTime() - start);
+
+        if (commands.isEmpty()) {
+            //nothing to do, so back off, in order not to load the DB needlessly
+            pollDelay = Math.min(pollDelay * 2, maxPollDelay);
+            return pollDelay;
+        }
+
+        int dispatched = 0;
+        for (Command command : commands) {
+            if (dispatch(command)) {
+                dispatched++;
+            }
+        }
+
+        logger.debug("Dispatched " + dispatched + " of " + commands.size() + " claimed commands. Queue depth: " +
+                commandExecutor.getQueueDepth() + ", in flight: " + commandExecutor.getInFlight());
+
+        pollDelay = minPollDelay;
+        if (commands.size() == toClaim && dispatched == commands.size()) {
             //still got stuff to do, so go do it. if another instance was waiting
             //for the lock, it should get there first, balancing load nicely
             self().doImmediateRetryTimeout();
         }
+        return pollDelay;
     }
 
     /**
@@ -93,9 +246,18 @@ public class CommandService {
     }
 
     private void unlockTimedoutCommands() {
-        int count = commandRepo.unlockCommands(Long.getLong("commandservice.timeout", 30000L));
+        LocalDateTime lockedBefore = LocalDateTime.now().minus(Duration.ofMillis(Long.getLong("commandservice.timeout", 30000L)));
+        Integer chunkSize = Integer.getInteger("commandservice.unlock.chunk.size", 1000);
+        int count = 0;
+        int unlocked;
+        do {
+            unlocked = commandRepo.unlockCommands(lockedBefore, chunkSize); //each chunk is committed separately
+            count += unlocked;
+        } while (unlocked >= chunkSize);
 
         if (count > 0) {
+            metrics.unlocked(count);
+            logger.info("Unlocked " + count + " commands which were locked before " + lockedBefore);
             self().doImmediateRetryTimeout();
         }
 
@@ -103,8 +265,27 @@ public class CommandService {
         //the command MUST implement idempotency ie be OK with repeated calls!
     }
 
+    /**
+     * the fast path: hands the command, which was just committed, straight to this instance's executor. it was
+     * locked by this instance when it was created, so no one else will run it, and it doesn't need to be read again.
+     * the row is only needed in case this instance dies or the executor is full, in which case the poller gets it.
+     * commands which weren't locked when they were created, i.e. ones with a dedup key, are left to the poller, which
+     * is told when they are due.
+     */
     public void observe(@Observes(during = TransactionPhase.AFTER_SUCCESS) Command command) {
-        self().executeCommand(command);
+        try (Span span = tracer.resume("CommandService.observe", command.getTraceParent())) {
+            if (command.getLocked() == null) {
+                span.tag("dispatched", false);
+                wakeUpAt(command.getNextAttemptAt());
+                return;
+            }
+            String name = command.getCommand();
+            if (!dispatch(command) && !circuitBreakers.isBlocked(name) && !rateLimiters.isLimited(name)) {
+                //no point waking the poller for a type it won't claim anyway
+                span.tag("dispatched", false);
+                wakeUp();
+            }
+        }
     }
 
     /**
@@ -113,37 +294,242 @@ public class CommandService {
     @Asynchronous
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Future<Void> doImmediateRetryTimeout() {
-        timeout(this.retryCommandsTimer);
+        pollForCommands();
         return new AsyncResult<>(null);
     }
 
-    @Asynchronous
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    public Future<Void> executeCommand(Command command) {
-        try {
-            JsonNode n = objectMapper.readTree(command.getContext());
-            for(ExecutableCommand ec : executors){
-                if(ec.getName().equals(command.getCommand())){
-                    ec.execute(command.getIdempotencyId(), n);
-                    break;
+    /**
+     * hands the command to a worker thread, so that a slow one doesn't hold up the rest of the batch.
+     * @return false if the executor didn't accept it, in which case it has been given back, so that the poller
+     * can pick it up again, here or on another instance.
+     */
+    private boolean dispatch(Command command) {
+        String name = command.getCommand();
+        if (circuitBreakers.tryAcquire(name)) {
+            if (!rateLimiters.tryAcquire(name)) {
+                circuitBreakers.release(name);
+                //deferred, rather than failed. no attempt is counted, and the poller leaves it alone until it is due
+                long wait = rateLimiters.getWait(name);
+                commandRepo.releaseLock(command, LocalDateTime.now().plusNanos(wait * 1000000L));
+                return false;
+            }
+            if (commandExecutor.submit(name, () -> executeAndDelete(command))) {
+                return true;
+            }
+            circuitBreakers.release(name);
+        }
+        //no attempt is counted, since it wasn't even started
+        commandRepo.releaseLock(command);
+        return false;
+    }
+
+    /** continues the trace of whoever created it, which may have been another thread or instance */
+    private void executeAndDelete(Command command) {
+        try (Span span = tracer.resume("CommandService.execute", command.getTraceParent())) {
+            if (span.isSampled()) {
+                span.tag("command", command.getCommand()).tag("id", command.getId()).tag("attempt", command.getAttempts() + 1);
+            }
+            if (execute(command)) {
+                completed.add(command.getId());
+                deleteCompleted();
+            } else {
+                span.tag("error", "failed");
+            }
+        }
+    }
+
+    /**
+     * deletes the commands which have been executed successfully. whichever worker gets here first deletes
+     * everything that has completed so far, using one statement in one transaction per <code>deleteBatchSize</code>
+     * commands, so under load the deletes are batched and otherwise they happen straight away. the others don't
+     * wait for it.
+     */
+    private void deleteCompleted() {
+        while (!completed.isEmpty() && deleteLock.tryLock()) {
+            try {
+                List<Long> ids = new ArrayList<>();
+                Long id;
+                while (ids.size() < deleteBatchSize && (id = completed.poll()) != null) {
+                    ids.add(id);
+                }
+                if (!ids.isEmpty()) {
+                    commandRepo.deleteAll(ids); //no longer needed. if this fails, no worries, timer will try again and ARO is idempotent
                 }
+            } catch (Exception e) {
+                logger.warn("Failed to delete commands after executing them", e);
+            } finally {
+                deleteLock.unlock();
             }
+            //loop, in case something completed after we polled the queue but before we released the lock
+        }
+    }
 
-            commandRepo.delete(command); //its no longer needed. if this fails, no worries, timer will try again and ARO is idempotent
+    /**
+     * @return true if the command was executed successfully, false if it failed, in which case the failure has
+     * already been recorded against it.
+     */
+    private boolean execute(Command command) {
+        ExecutableCommand<?> ec = registry.get(command.getCommand());
+        if (ec == null) {
+            //retrying won't help, so don't
+            logger.error("Unknown command '" + command.getCommand() + "' for command " + command.getId() + ". Command will NOT be retried.");
+            commandRepo.giveUp(command, "Unknown command");
+            metrics.died(command.getCommand());
+            return false;
+        }
+        metrics.started(command);
+        long start = System.nanoTime();
+        try {
+            execute(ec, command);
+            metrics.executed(command.getCommand(), System.nanoTime() - start, true);
+            circuitBreakers.onSuccess(command.getCommand());
+            return true;
         } catch (Exception e) {
+            metrics.executed(command.getCommand(), System.nanoTime() - start, false);
+            circuitBreakers.onFailure(command.getCommand());
             if (command.getAttempts() < MAX_NUM_RETRIES - 1) {
                 logger.error("Failed to execute command " + command.getId() + ". Command will be retried.", e);
+                metrics.retried(command.getCommand());
             } else {
                 logger.error("Failed to execute command " + command.getId() + ". Command will NOT be retried.", e);
+                metrics.died(command.getCommand());
             }
-            commandRepo.resetLockAfterFailure(command);
+            commandRepo.resetLockAfterFailure(command, retryBackoff.nextAttemptAt(command.getCommand(), command.getAttempts() + 1), e);
+            return false;
         }
-        return new AsyncResult<>(null);
     }
 
+    private <C> void execute(ExecutableCommand<C> ec, Command command) throws IOException {
+        C context = contextCodec.read(command, ec.getContextType());
+        commandInvoker.execute(ec, command.getIdempotencyId(), context);
+    }
+
+    /**
+     * a read lock is enough, since it doesn't touch the state of this singleton, and callers mustn't wait for each
+     * other, least of all in {@link PersistMode#APPEND} mode, where they wait together for a shared commit.
+     */
+    @Lock(LockType.READ)
     public void persistCommand(Command command) {
-        commandRepo.create(command);
+        try (Span span = tracer.start("CommandService.persistCommand")) {
+            span.tag("command", command.getCommand());
+            command.setTraceParent(span.getTraceParent());
+            if (command.getDedupKey() != null) {
+                persistOrMerge(command, span); //never appended, see PersistMode
+                return;
+            }
+            if (persistMode == PersistMode.APPEND) {
+                commandAppender.append(command); //already committed, but still dispatched once the caller commits
+            } else {
+                commandRepo.create(command);
+            }
+
+            event.fire(command);//fire immedeatly, so we don't have to wait for timer to pick up the work
+        }
+    }
+
+    /**
+     * like {@link #persistCommand(Command)}, for many commands at once, e.g. from a bulk import. commands with a
+     * dedup key are inserted or merged using one JDBC batch and one select, rather than a round trip each.
+     */
+    @Lock(LockType.READ)
+    public void persistCommands(List<Command> commands) {
+        try (Span span = tracer.start("CommandService.persistCommands")) {
+            span.tag("commands", commands.size());
+            List<Command> deduplicated = new ArrayList<>();
+            for (Command command : commands) {
+                command.setTraceParent(span.getTraceParent());
+                if (command.getDedupKey() != null) {
+                    delayForMerging(command);
+                    deduplicated.add(command);
+                } else if (persistMode == PersistMode.APPEND) {
+                    commandAppender.append(command);
+                    event.fire(command);
+                } else {
+                    commandRepo.create(command);
+                    event.fire(command);
+                }
+            }
+            if (!deduplicated.isEmpty()) {
+                Map<String, Command> pending = commandRepo.createOrFindPending(deduplicated);
+                Command first = null;
+                for (Command command : deduplicated) {
+                    Command into = pending.get(command.getDedupKey());
+                    if (into == null) {
+                        into = commandRepo.createOrFindPending(command); //it was claimed in the meantime
+                    }
+                    if (mergeInto(into, command, span) && first == null) {
+                        first = into;
+                    }
+                }
+                if (first != null) {
+                    event.fire(first); //they are all due at about the same time, so one wake up is enough
+                }
+            }
+        }
+    }
+
+    /**
+     * merges the command into the pending one with the same dedup key, if there is one, so that redundant work
+     * collapses here rather than being executed.
+     */
+    private void persistOrMerge(Command command, Span span) {
+        delayForMerging(command);
+        Command pending = commandRepo.createOrFindPending(command);
+        if (mergeInto(pending, command, span)) {
+            event.fire(pending); //so that the poller wakes up when it is due, rather than after the maximum delay
+        }
+    }
+
+    /**
+     * it isn't executed straight away, but after <code>commandservice.dedup.window</code> milliseconds (which can
+     * be set per type), so that further commands have a chance to be merged into it.
+     */
+    private void delayForMerging(Command command) {
+        String name = command.getCommand();
+        long window = Long.getLong("commandservice.dedup." + name + ".window", Long.getLong("commandservice.dedup.window", 1000L));
+        command.scheduleNextAttempt(LocalDateTime.now().plusNanos(window * 1000000L));
+    }
+
+    /**
+     * @param pending the one with the same dedup key, which may be the command itself, if it was the first
+     * @return true if it was the first, i.e. it was inserted rather than merged
+     */
+    private boolean mergeInto(Command pending, Command command, Span span) {
+        if (pending.getIdempotencyId().equals(command.getIdempotencyId())) {
+            return true; //it's the first, so nothing to merge
+        }
+        String name = command.getCommand();
+        MergePolicy policy = MergePolicy.forCommand(name);
+        span.tag("mergedInto", pending.getId()).tag("policy", policy.name());
+        metrics.merged(name);
+        if (policy == MergePolicy.COALESCE && tryCoalesce(pending, command)) {
+            return false;
+        }
+        if (policy != MergePolicy.KEEP_FIRST) {
+            pending.replaceContext(command); //KEEP_LATEST, or COALESCE when there is nothing else we can do with it
+        }
+        return false;
+    }
+
+    /** @return false if the contexts couldn't be coalesced, e.g. because the type is no longer known */
+    private boolean tryCoalesce(Command pending, Command latest) {
+        ExecutableCommand<?> ec = registry.get(latest.getCommand());
+        if (ec == null) {
+            return false;
+        }
+        try {
+            coalesce(ec, pending, latest);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Unable to coalesce the context of command " + pending.getId() + ", keeping the latest instead", e);
+            return false;
+        }
+    }
 
-        event.fire(command);//fire immedeatly, so we don't have to wait for timer to pick up the work
+    private <C> void coalesce(ExecutableCommand<C> ec, Command pending, Command latest) throws IOException {
+        C context = ec.coalesce(contextCodec.read(pending, ec.getContextType()), contextCodec.read(latest, ec.getContextType()));
+        Command coalesced = contextCodec.newCommand(ec.getName(), context);
+        coalesced.setTraceParent(latest.getTraceParent());
+        pending.replaceContext(coalesced);
     }
 }
@@ -0,0 +1,168 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * turns the context of a command into JSON and back. readers and writers are created once per type and reused,
+ * and contexts are bound directly to the type declared by {@link ExecutableCommand#getContextType()}, rather than
+ * building a tree first.
+ *
+ * contexts are read leniently: unknown properties are ignored and missing ones keep their defaults. so a
+ * context written by a newer version of the software can be read by an older one and vice versa. if the code
+ * needs to tell them apart, include a version number in the context, see e.g. <code>CreateTaskContext</code>.
+ *
+ * with <code>commandservice.context.encoding=SMILE</code>, new commands store their context in binary
+ * (<a href="https://github.com/FasterXML/smile-format-specification">Smile</a>) form instead, which is deflated
+ * if it is larger than <code>commandservice.context.compress.threshold</code> bytes. the first byte says how the
+ * rest was encoded, so commands in either form can always be read, whatever the current setting.
+ */
+@ApplicationScoped
+public class ContextCodec {
+
+    public enum Encoding {
+        /** as text, in the CONTEXT column */
+        JSON,
+        /** as binary, in the CONTEXT_DATA column */
+        SMILE
+    }
+
+    static final byte FORMAT_JSON = 0x00;
+
+    static final byte FORMAT_SMILE = 0x01;
+
+    /** combined with one of the formats */
+    static final byte FLAG_DEFLATED = 0x10;
+
+    private final ObjectMapper mapper = newMapper(new JsonFactory());
+
+    private final ObjectMapper smileMapper = newMapper(new SmileFactory());
+
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ObjectReader> smileReaders = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ObjectWriter> smileWriters = new ConcurrentHashMap<>();
+
+    Encoding encoding = Encoding.valueOf(System.getProperty("commandservice.context.encoding", Encoding.JSON.name()));
+
+    int compressThreshold = Integer.getInteger("commandservice.context.compress.threshold", 1024);
+
+    private static ObjectMapper newMapper(JsonFactory factory) {
+        ObjectMapper mapper = new ObjectMapper(factory);
+        mapper.registerModule(new Jdk8Module());
+        mapper.registerModule(new JavaTimeModule());
+        mapper.registerModule(new AfterburnerModule()); //generates bytecode for accessors, rather than using reflection
+
+        mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    /** creates a command whose context is encoded as configured */
+    public Command newCommand(String name, Object context) {
+        if (encoding == Encoding.SMILE) {
+            return new Command(name, encode(context));
+        }
+        return new Command(name, write(context));
+    }
+
+    /** reads the context of the given command, whichever column it is in */
+    public <C> C read(Command command, Class<C> type) throws IOException {
+        if (command.getContextData() != null) {
+            return decode(command.getContextData(), type);
+        }
+        return read(command.getContext(), type);
+    }
+
+    public <C> C read(String context, Class<C> type) throws IOException {
+        return readers.computeIfAbsent(type, mapper::readerFor).readValue(context);
+    }
+
+    public String write(Object context) {
+        try {
+            return writers.computeIfAbsent(context.getClass(), mapper::writerFor).writeValueAsString(context);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unable to serialise context of type " + context.getClass().getName(), e);
+        }
+    }
+
+    /** @return the context in Smile form, deflated if that is worth it, prefixed with the format byte */
+    public byte[] encode(Object context) {
+        byte[] smile;
+        try {
+            smile = smileWriters.computeIfAbsent(context.getClass(), smileMapper::writerFor).writeValueAsBytes(context);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unable to serialise context of type " + context.getClass().getName(), e);
+        }
+
+        if (smile.length > compressThreshold) {
+            byte[] deflated = deflate(smile);
+            if (deflated.length < smile.length) { //small or random data can get bigger
+                return prefix((byte) (FORMAT_SMILE | FLAG_DEFLATED), deflated);
+            }
+        }
+        return prefix(FORMAT_SMILE, smile);
+    }
+
+    public <C> C decode(byte[] data, Class<C> type) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Context data is empty");
+        }
+        byte format = data[0];
+        InputStream in = new ByteArrayInputStream(data, 1, data.length - 1);
+        if ((format & FLAG_DEFLATED) != 0) {
+            in = new InflaterInputStream(in);
+        }
+        switch (format & ~FLAG_DEFLATED) {
+            case FORMAT_JSON:
+                return readers.computeIfAbsent(type, mapper::readerFor).readValue(in);
+            case FORMAT_SMILE:
+                return smileReaders.computeIfAbsent(type, smileMapper::readerFor).readValue(in);
+            default:
+                throw new IOException("Unknown context format " + format);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(baos, deflater)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot happen with an in-memory stream", e);
+        } finally {
+            deflater.end();
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] prefix(byte format, byte[] data) {
+        byte[] result = new byte[data.length + 1];
+        result[0] = format;
+        System.arraycopy(data, 0, result, 1, data.length);
+        return result;
+    }
+}
@@ -0,0 +1,179 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.persistence.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+
+/**
+ * a command which has been given up on, moved out of T_COMMAND so that the working table stays small. it can be
+ * requeued once whatever caused it to fail has been fixed, or purged. see {@link DeadCommandRepository}.
+ */
+@Entity
+@Table(name = "T_COMMAND_DEAD")
+@NamedQueries({
+        @NamedQuery(name = DeadCommand.NQSelectAll.NAME, query = DeadCommand.NQSelectAll.QUERY),
+        @NamedQuery(name = DeadCommand.NQSelectByCommand.NAME, query = DeadCommand.NQSelectByCommand.QUERY),
+        @NamedQuery(name = DeadCommand.NQDeleteByIds.NAME, query = DeadCommand.NQDeleteByIds.QUERY),
+        @NamedQuery(name = DeadCommand.NQDeleteDiedBefore.NAME, query = DeadCommand.NQDeleteDiedBefore.QUERY)
+})
+public class DeadCommand {
+
+    public static class NQSelectAll {
+        public static final String NAME = "DeadCommand.selectAll";
+        public static final String QUERY = "select d from DeadCommand d order by d.died desc, d.id desc";
+    }
+
+    public static class NQSelectByCommand {
+        public static final String NAME = "DeadCommand.selectByCommand";
+        public static final String PARAM_COMMAND = "command";
+        public static final String QUERY = "select d from DeadCommand d where d.command = :" + PARAM_COMMAND +
+                " order by d.died desc, d.id desc";
+    }
+
+    public static class NQDeleteByIds {
+        public static final String NAME = "DeadCommand.deleteByIds";
+        public static final String PARAM_IDS = "ids";
+        public static final String QUERY = "delete from DeadCommand d where d.id in :" + PARAM_IDS;
+    }
+
+    public static class NQDeleteDiedBefore {
+        public static final String NAME = "DeadCommand.deleteDiedBefore";
+        public static final String PARAM_DIED = "died";
+        public static final String QUERY = "delete from DeadCommand d where d.died < :" + PARAM_DIED;
+    }
+
+    static final int MAX_ERROR_LENGTH = 1000;
+
+    /** the ID it had in T_COMMAND */
+    @Id
+    @Column(name = "ID")
+    private long id;
+
+    @Column(name = "COMMAND", nullable = false, updatable = false)
+    private String command;
+
+    @Column(name = "ATTEMPTS", nullable = false, updatable = false)
+    private int attempts;
+
+    @Column(name = "IDEMPOTENCY_ID", nullable = false, updatable = false, length = 36)
+    private String idempotencyId;
+
+    @Column(name = "PRIORITY", nullable = false, updatable = false)
+    private int priority;
+
+    @Column(name = "PARTITION_KEY", nullable = false, updatable = false)
+    private int partitionKey;
+
+    @Column(name = "CONTEXT", updatable = false)
+    private String context;
+
+    @Column(name = "CONTEXT_DATA", updatable = false)
+    private byte[] contextData;
+
+    /** the exception and its message, from the last attempt */
+    @Column(name = "LAST_ERROR", length = MAX_ERROR_LENGTH, updatable = false)
+    private String lastError;
+
+    /**
+     * a hash of the exceptions and the methods they were thrown through, without messages or line numbers,
+     * so that commands which died for the same reason can be grouped
+     */
+    @Column(name = "STACK_DIGEST", length = 64, updatable = false)
+    private String stackDigest;
+
+    @Column(name = "DIED", nullable = false, updatable = false)
+    private LocalDateTime died = LocalDateTime.now();
+
+    public DeadCommand() {
+    }
+
+    /** @param error null if it wasn't given up on because of an exception */
+    public DeadCommand(Command command, String reason, Throwable error) {
+        this.id = command.getId();
+        this.command = command.getCommand();
+        this.attempts = command.getAttempts();
+        this.idempotencyId = command.getIdempotencyId();
+        this.priority = command.getPriority().getValue();
+        this.partitionKey = command.getPartitionKey();
+        this.context = command.getContext();
+        this.contextData = command.getContextData();
+        this.lastError = describe(reason, error);
+        this.stackDigest = error == null ? null : digest(error);
+    }
+
+    static String describe(String reason, Throwable error) {
+        StringBuilder sb = new StringBuilder(reason);
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            sb.append(t == error ? ": " : " / caused by: ").append(t.getClass().getName());
+            if (t.getMessage() != null) {
+                sb.append(": ").append(t.getMessage());
+            }
+        }
+        return sb.length() > MAX_ERROR_LENGTH ? sb.substring(0, MAX_ERROR_LENGTH) : sb.toString();
+    }
+
+    static String digest(Throwable error) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+                md.update(t.getClass().getName().getBytes(StandardCharsets.UTF_8));
+                for (StackTraceElement e : t.getStackTrace()) {
+                    md.update((e.getClassName() + "." + e.getMethodName()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has SHA-256", e);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getIdempotencyId() {
+        return idempotencyId;
+    }
+
+    public CommandPriority getPriority() {
+        return CommandPriority.of(priority);
+    }
+
+    public int getPartitionKey() {
+        return partitionKey;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public byte[] getContextData() {
+        return contextData;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public String getStackDigest() {
+        return stackDigest;
+    }
+
+    public LocalDateTime getDied() {
+        return died;
+    }
+}
@@ -0,0 +1,73 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/** for looking after commands which have been given up on. see {@link DeadCommand} */
+@Stateless
+public class DeadCommandRepository {
+
+    static final String PARAM_IDS = "ids";
+
+    static final String PARAM_NOW = "now";
+
+    /** puts them back as new commands, with the same ID and idempotency ID, due straight away */
+    private static final String REQUEUE = "INSERT INTO T_COMMAND (ID, COMMAND, ATTEMPTS, IDEMPOTENCY_ID, PRIORITY, PARTITION_KEY, CONTEXT, CONTEXT_DATA, LOCKED, OWNER, NEXT_ATTEMPT_AT) " +
+            "SELECT ID, COMMAND, 0, IDEMPOTENCY_ID, PRIORITY, PARTITION_KEY, CONTEXT, CONTEXT_DATA, NULL, NULL, :" + PARAM_NOW +
+            " FROM T_COMMAND_DEAD WHERE ID IN (:" + PARAM_IDS + ")";
+
+    @Inject
+    EntityManager em;
+
+    /** @param command if not null, only commands with this name, otherwise all of them. most recently died first. */
+    public List<DeadCommand> list(String command, int first, int max) {
+        TypedQuery<DeadCommand> q;
+        if (command == null) {
+            q = em.createNamedQuery(DeadCommand.NQSelectAll.NAME, DeadCommand.class);
+        } else {
+            q = em.createNamedQuery(DeadCommand.NQSelectByCommand.NAME, DeadCommand.class)
+                    .setParameter(DeadCommand.NQSelectByCommand.PARAM_COMMAND, command);
+        }
+        return q.setFirstResult(first).setMaxResults(max).getResultList();
+    }
+
+    /**
+     * moves them back to T_COMMAND, in one transaction, using two statements and without loading them. the poller
+     * will pick them up.
+     * @return how many were requeued. unknown IDs are ignored.
+     */
+    public int requeue(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int count = em.createNativeQuery(REQUEUE)
+                .setParameter(PARAM_NOW, Timestamp.valueOf(LocalDateTime.now()))
+                .setParameter(PARAM_IDS, ids)
+                .executeUpdate();
+        purge(ids);
+        return count;
+    }
+
+    /** @return how many were deleted. unknown IDs are ignored. */
+    public int purge(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery(DeadCommand.NQDeleteByIds.NAME)
+                .setParameter(DeadCommand.NQDeleteByIds.PARAM_IDS, ids)
+                .executeUpdate();
+    }
+
+    /** @return how many were deleted */
+    public int purgeDiedBefore(LocalDateTime died) {
+        return em.createNamedQuery(DeadCommand.NQDeleteDiedBefore.NAME)
+                .setParameter(DeadCommand.NQDeleteDiedBefore.PARAM_DIED, died)
+                .executeUpdate();
+    }
+}
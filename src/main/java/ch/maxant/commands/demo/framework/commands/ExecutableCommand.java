@@ -1,10 +1,26 @@
 package ch.maxant.commands.demo.framework.commands;
 
-import com.fasterxml.jackson.databind.JsonNode;
+/**
+ * @param <C> the type of the context, which the framework deserialises for you. use
+ *           <code>com.fasterxml.jackson.databind.JsonNode</code> if you'd rather navigate the JSON yourself.
+ */
+public interface ExecutableCommand<C> {
 
-public interface ExecutableCommand {
-
-    void execute(String idempotencyId, JsonNode context);
+    /**
+     * called on one of the {@link CommandExecutor}'s worker threads, in a transaction of its own, which is rolled
+     * back if this throws. the command is then retried later, so it must be idempotent, e.g. using the idempotency ID.
+     */
+    void execute(String idempotencyId, C context);
 
     String getName();
+
+    Class<C> getContextType();
+
+    /**
+     * combines the context of a command which is still pending with that of a new one with the same dedup key, if
+     * the type's {@link MergePolicy} is COALESCE. e.g. a list of changes could be appended. the latest by default.
+     */
+    default C coalesce(C pending, C latest) {
+        return latest;
+    }
 }
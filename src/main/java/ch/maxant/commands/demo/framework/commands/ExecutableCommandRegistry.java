@@ -0,0 +1,37 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * finds the {@link ExecutableCommand} for a command by name, without iterating over every bean and resolving
+ * its proxy. built once at startup, which is also when duplicate names are detected.
+ */
+public class ExecutableCommandRegistry {
+
+    private final Map<String, ExecutableCommand<?>> executors;
+
+    public ExecutableCommandRegistry(Iterable<? extends ExecutableCommand<?>> candidates) {
+        Map<String, ExecutableCommand<?>> executors = new HashMap<>();
+        for (ExecutableCommand<?> ec : candidates) {
+            String name = ec.getName();
+            ExecutableCommand<?> existing = executors.putIfAbsent(name, ec);
+            if (existing != null) {
+                throw new IllegalStateException("Command name '" + name + "' is used by both " +
+                        existing.getClass().getName() + " and " + ec.getClass().getName());
+            }
+        }
+        this.executors = Collections.unmodifiableMap(executors);
+    }
+
+    /** @return null if there is no executor with that name */
+    public ExecutableCommand<?> get(String name) {
+        return executors.get(name);
+    }
+
+    public Set<String> getNames() {
+        return executors.keySet();
+    }
+}
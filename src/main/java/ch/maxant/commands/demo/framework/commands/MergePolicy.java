@@ -0,0 +1,34 @@
+package ch.maxant.commands.demo.framework.commands;
+
+/**
+ * what happens when a command is persisted with the same dedup key as one which is still pending, i.e. hasn't been
+ * claimed yet. see {@link Command#dedupBy(Object)}. set per type with <code>commandservice.dedup.&lt;name&gt;.policy</code>,
+ * or for all types with <code>commandservice.dedup.policy</code>, KEEP_LATEST by default.
+ */
+public enum MergePolicy {
+
+    /** the pending command gets the context of the new one */
+    KEEP_LATEST,
+
+    /** the new command is dropped */
+    KEEP_FIRST,
+
+    /** the contexts are combined using {@link ExecutableCommand#coalesce(Object, Object)} */
+    COALESCE;
+
+    /**
+     * deduplicating is opt-in per type, using <code>commandservice.dedup.&lt;name&gt;.enabled</code>, or for all
+     * types using <code>commandservice.dedup.enabled</code>, because such commands wait for the window rather than
+     * being executed straight away. callers check it before calling {@link Command#dedupBy(Object)}.
+     */
+    public static boolean isEnabled(String commandName) {
+        return Boolean.parseBoolean(System.getProperty("commandservice.dedup." + commandName + ".enabled",
+                System.getProperty("commandservice.dedup.enabled", "false")));
+    }
+
+    /** only needed when a command is merged, so it isn't worth caching */
+    public static MergePolicy forCommand(String commandName) {
+        return valueOf(System.getProperty("commandservice.dedup." + commandName + ".policy",
+                System.getProperty("commandservice.dedup.policy", KEEP_LATEST.name())));
+    }
+}
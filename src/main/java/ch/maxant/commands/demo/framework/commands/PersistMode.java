@@ -0,0 +1,24 @@
+package ch.maxant.commands.demo.framework.commands;
+
+/**
+ * how {@link CommandService#persistCommand(Command)} writes commands.
+ * configured using the system property <code>commandservice.persist.mode</code>.
+ */
+public enum PersistMode {
+
+    /**
+     * in the caller's transaction, together with its business data, so that either both are committed or neither.
+     * the default.
+     */
+    TRANSACTIONAL,
+
+    /**
+     * appended to a buffer which {@link CommandAppender} commits in batches, in a transaction of its own, so that
+     * many callers share one commit. the caller waits until it is committed. NOT atomic with the business data:
+     * if the caller's transaction rolls back afterwards, the command is still executed, once its lock times out.
+     * only use it for commands where that is acceptable, e.g. because they are idempotent notifications.
+     * commands with a dedup key are still written in the caller's transaction, since merging them into the pending
+     * one has to happen while it is locked.
+     */
+    APPEND
+}
@@ -0,0 +1,45 @@
+package ch.maxant.commands.demo.framework.commands;
+
+/**
+ * shares each batch of commands which is claimed out between the lanes, in proportion to their weights. uses smooth
+ * weighted round robin, so that even when only one or two commands are claimed at a time, e.g. because the
+ * executor is nearly full, every lane gets its share over a few batches and none is starved.
+ */
+class PriorityLanes {
+
+    private final int[] weights = new int[CommandPriority.LANES.length];
+
+    private final int totalWeight;
+
+    private final int[] current = new int[CommandPriority.LANES.length];
+
+    PriorityLanes() {
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Math.max(0, CommandPriority.LANES[i].getWeight());
+            total += weights[i];
+        }
+        totalWeight = total;
+    }
+
+    /** @return how many commands to claim from each lane, in the order of {@link CommandPriority#LANES} */
+    synchronized int[] quotas(int batchSize) {
+        int[] quotas = new int[weights.length];
+        if (totalWeight == 0) {
+            quotas[0] = batchSize; //no weights, so simply strict priority
+            return quotas;
+        }
+        for (int n = 0; n < batchSize; n++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= totalWeight;
+            quotas[best]++;
+        }
+        return quotas;
+    }
+}
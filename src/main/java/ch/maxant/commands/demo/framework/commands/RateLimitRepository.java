@@ -0,0 +1,34 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import java.time.LocalDateTime;
+
+/** hands out tokens from the buckets in T_COMMAND_RATE_LIMIT. see {@link CommandRateLimit} */
+@Stateless
+public class RateLimitRepository {
+
+    @Inject
+    EntityManager em;
+
+    /**
+     * locks the bucket for the given type, so that instances take their tokens one after the other, and commits
+     * straight away, so that it is only locked for a moment. if two instances create the same bucket at the same
+     * time, one fails on the primary key, and can try again later.
+     * @param rate tokens per second
+     * @return how many tokens this instance may use, between zero and <code>wanted</code>
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int lease(String command, int wanted, double rate, double burst, LocalDateTime now) {
+        CommandRateLimit limit = em.find(CommandRateLimit.class, command, LockModeType.PESSIMISTIC_WRITE);
+        if (limit == null) {
+            limit = new CommandRateLimit(command, burst, now);
+            em.persist(limit);
+        }
+        return limit.take(wanted, rate, burst, now);
+    }
+}
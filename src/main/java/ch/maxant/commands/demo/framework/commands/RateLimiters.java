@@ -0,0 +1,177 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.slf4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * limits how many commands of each type are started per second, so that e.g. draining a backlog after an outage
+ * doesn't overwhelm the service provider. commands which are over the limit aren't failed, they are just
+ * deferred until there should be a token for them again.
+ *
+ * each type can have a token bucket per instance, configured with <code>commandservice.ratelimit.&lt;name&gt;.rate</code>
+ * (tokens per second) and <code>.burst</code> (how many can be saved up, by default one second's worth), and/or
+ * one which is shared by the whole cluster, configured with <code>.cluster.rate</code> and <code>.cluster.burst</code>.
+ * the shared one lives in T_COMMAND_RATE_LIMIT, from which each instance leases about
+ * <code>commandservice.ratelimit.cluster.lease</code> milliseconds' worth of tokens at a time, so that the database
+ * isn't asked for every single command. each setting can also be given for all types, e.g.
+ * <code>commandservice.ratelimit.rate</code>. types without a rate aren't limited.
+ */
+@ApplicationScoped
+public class RateLimiters {
+
+    @Inject
+    RateLimitRepository repository;
+
+    @Inject
+    Logger logger;
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    /** @return true if a command of the given type may be started now, in which case a token has been used up */
+    public boolean tryAcquire(String commandName) {
+        return limiterFor(commandName).tryAcquire(clock.getAsLong());
+    }
+
+    /** @return true if there is no token for the given type right now, so there is no point claiming it */
+    public boolean isLimited(String commandName) {
+        Limiter limiter = limiters.get(commandName);
+        return limiter != null && limiter.getWait(clock.getAsLong()) > 0;
+    }
+
+    /** the types of command which would not be let through right now */
+    public Set<String> getLimitedCommands() {
+        long now = clock.getAsLong();
+        return limiters.entrySet().stream()
+                .filter(e -> e.getValue().getWait(now) > 0)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    /** @return milliseconds until there should be a token for the given type again, zero if there is one now */
+    public long getWait(String commandName) {
+        Limiter limiter = limiters.get(commandName);
+        return limiter == null ? 0L : limiter.getWait(clock.getAsLong());
+    }
+
+    private Limiter limiterFor(String commandName) {
+        return limiters.computeIfAbsent(commandName, Limiter::new);
+    }
+
+    private static double getDouble(String commandName, String key, double defaultValue) {
+        String value = System.getProperty("commandservice.ratelimit." + commandName + "." + key,
+                System.getProperty("commandservice.ratelimit." + key));
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private class Limiter {
+        private final String commandName;
+
+        /** null if this instance isn't limited on its own */
+        private final TokenBucket local;
+
+        private final double clusterRate;
+        private final double clusterBurst;
+        private final int leaseSize;
+
+        /** tokens leased from the cluster wide bucket, but not used yet */
+        private int leased;
+
+        /** when the cluster wide bucket ran dry, we don't ask it again before this */
+        private long nextLeaseAt;
+
+        private Limiter(String commandName) {
+            this.commandName = commandName;
+            double rate = getDouble(commandName, "rate", 0.0);
+            local = rate > 0 ? new TokenBucket(rate, getDouble(commandName, "burst", Math.max(1.0, rate)), clock.getAsLong()) : null;
+
+            clusterRate = getDouble(commandName, "cluster.rate", 0.0);
+            clusterBurst = getDouble(commandName, "cluster.burst", Math.max(1.0, clusterRate));
+            long leaseMillis = Long.getLong("commandservice.ratelimit.cluster.lease", 100L);
+            leaseSize = (int) Math.max(1L, Math.min(Math.round(clusterRate * leaseMillis / 1000.0), (long) clusterBurst));
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            if (local != null && local.getWait(now) > 0) {
+                return false;
+            }
+            if (clusterRate > 0) {
+                if (leased == 0 && !lease(now)) {
+                    return false;
+                }
+                leased--;
+            }
+            if (local != null) {
+                local.take();
+            }
+            return true;
+        }
+
+        private boolean lease(long now) {
+            if (now < nextLeaseAt) {
+                return false;
+            }
+            try {
+                LocalDateTime at = LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault());
+                leased = repository.lease(commandName, leaseSize, clusterRate, clusterBurst, at);
+            } catch (Exception e) {
+                //e.g. another instance created the bucket at the same time. try again once a token should have come in
+                logger.warn("Failed to lease tokens for command " + commandName + " from the cluster wide rate limit", e);
+                leased = 0;
+            }
+            if (leased == 0) {
+                nextLeaseAt = now + (long) Math.ceil(1000.0 / clusterRate);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized long getWait(long now) {
+            long wait = local == null ? 0L : local.getWait(now);
+            if (clusterRate > 0 && leased == 0) {
+                wait = Math.max(wait, nextLeaseAt - now);
+            }
+            return Math.max(0L, wait);
+        }
+    }
+
+    /** not thread safe, the limiter which uses it synchronizes */
+    private static class TokenBucket {
+        /** per millisecond */
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long refilled;
+
+        private TokenBucket(double ratePerSecond, double burst, long now) {
+            this.rate = ratePerSecond / 1000.0;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        /** tops it up, and returns how long until there is a whole token, zero if there is one now */
+        long getWait(long now) {
+            if (now > refilled) {
+                tokens = Math.min(burst, tokens + (now - refilled) * rate);
+                refilled = now;
+            }
+            return tokens >= 1.0 ? 0L : (long) Math.ceil((1.0 - tokens) / rate);
+        }
+
+        void take() {
+            tokens -= 1.0;
+        }
+    }
+}
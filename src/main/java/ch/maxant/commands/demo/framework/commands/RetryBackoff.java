@@ -0,0 +1,58 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * decides when a command which failed is attempted again. the delay grows exponentially with the number of
+ * attempts, up to a maximum, so that a struggling service provider isn't hammered. a random part of it (the
+ * jitter) is taken off, so that commands which failed together don't all come back together.
+ *
+ * configured with <code>commandservice.backoff.initial</code>, <code>.max</code> (both in milliseconds),
+ * <code>.multiplier</code> and <code>.jitter</code> (0 to 1), each of which can be overridden per command type,
+ * e.g. <code>commandservice.backoff.CreateTask.initial</code>.
+ */
+@ApplicationScoped
+public class RetryBackoff {
+
+    private final Map<String, Settings> settingsPerCommand = new ConcurrentHashMap<>();
+
+    /** @param attempts how many attempts have failed so far, including the one which just did */
+    public LocalDateTime nextAttemptAt(String commandName, int attempts) {
+        return LocalDateTime.now().plusNanos(delay(commandName, attempts) * 1000000L);
+    }
+
+    /** in milliseconds */
+    long delay(String commandName, int attempts) {
+        Settings settings = settingsPerCommand.computeIfAbsent(commandName, Settings::new);
+        double delay = settings.initial * Math.pow(settings.multiplier, Math.max(0, attempts - 1));
+        delay = Math.min(delay, settings.max);
+        delay -= delay * settings.jitter * ThreadLocalRandom.current().nextDouble();
+        return Math.round(delay);
+    }
+
+    private static class Settings {
+        private final long initial;
+        private final long max;
+        private final double multiplier;
+        private final double jitter;
+
+        private Settings(String commandName) {
+            initial = Long.getLong("commandservice.backoff." + commandName + ".initial",
+                    Long.getLong("commandservice.backoff.initial", 1000L));
+            max = Long.getLong("commandservice.backoff." + commandName + ".max",
+                    Long.getLong("commandservice.backoff.max", 60000L));
+            multiplier = getDouble("multiplier", commandName, 4.0);
+            jitter = Math.max(0.0, Math.min(1.0, getDouble("jitter", commandName, 0.5)));
+        }
+
+        private static double getDouble(String name, String commandName, double defaultValue) {
+            String value = System.getProperty("commandservice.backoff." + commandName + "." + name,
+                    System.getProperty("commandservice.backoff." + name));
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+    }
+}
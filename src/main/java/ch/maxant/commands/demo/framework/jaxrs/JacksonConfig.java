@@ -17,12 +17,18 @@ public class JacksonConfig implements ContextResolver<ObjectMapper> {
 
 
     public JacksonConfig() throws Exception {
-        this.objectMapper = new ObjectMapper();
+        this.objectMapper = newObjectMapper();
+    }
+
+    /** configured like the one JAX-RS uses, e.g. for code which streams JSON itself */
+    public static ObjectMapper newObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
 
-        this.objectMapper.registerModule(new Jdk8Module());
-        this.objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.registerModule(new Jdk8Module());
+        objectMapper.registerModule(new JavaTimeModule());
 
-        this.objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        return objectMapper;
     }
 
 
@@ -0,0 +1,44 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** appends each span to a file as a line of JSON, which is easy to grep, or load into something else later */
+public class FileSpanExporter implements SpanExporter, AutoCloseable {
+
+    private final ObjectWriter writer = new ObjectMapper().writerFor(Span.class);
+
+    private final Writer out;
+
+    public FileSpanExporter(Path file) {
+        try {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open " + file + " for writing spans", e);
+        }
+    }
+
+    @Override
+    public synchronized void export(Span span) {
+        try {
+            out.write(writer.writeValueAsString(span));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            //losing a span isn't worth failing the business call for
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,42 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/** keeps the most recent spans, so that they can be looked at without any other infrastructure */
+public class InMemorySpanExporter implements SpanExporter {
+
+    private final int capacity;
+
+    private final Deque<Span> spans;
+
+    public InMemorySpanExporter(int capacity) {
+        this.capacity = capacity;
+        this.spans = new ArrayDeque<>(capacity);
+    }
+
+    @Override
+    public synchronized void export(Span span) {
+        if (spans.size() == capacity) {
+            spans.removeFirst();
+        }
+        spans.addLast(span);
+    }
+
+    /** oldest first */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /** the spans of the given trace which are still held, oldest first */
+    public synchronized List<Span> getSpans(String traceId) {
+        return spans.stream().filter(s -> traceId.equals(s.getTraceId())).collect(Collectors.toList());
+    }
+
+    public synchronized void clear() {
+        spans.clear();
+    }
+}
@@ -0,0 +1,131 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a timed piece of work, which belongs to a trace. spans which weren't sampled don't get IDs, a start time or tags,
+ * and aren't exported, so they cost next to nothing. they are still tracked, so that their children aren't sampled
+ * either. close it, ideally using try-with-resources, in the thread which started it.
+ */
+public class Span implements AutoCloseable {
+
+    private final Tracer tracer;
+
+    private final Span previous;
+
+    private final boolean sampled;
+
+    private final String traceId;
+
+    private final String spanId;
+
+    private final String parentId;
+
+    private final String name;
+
+    private final String thread;
+
+    private final long startMillis;
+
+    private final long startNanos;
+
+    private long durationMicros = -1;
+
+    private Map<String, String> tags;
+
+    /** not sampled */
+    Span(Tracer tracer, Span previous) {
+        this(tracer, previous, false, null, null, null, null);
+    }
+
+    Span(Tracer tracer, Span previous, boolean sampled, String traceId, String spanId, String parentId, String name) {
+        this.tracer = tracer;
+        this.previous = previous;
+        this.sampled = sampled;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.name = name;
+        this.thread = sampled ? Thread.currentThread().getName() : null;
+        this.startMillis = sampled ? System.currentTimeMillis() : 0L;
+        this.startNanos = sampled ? System.nanoTime() : 0L;
+    }
+
+    /** does nothing unless it is sampled */
+    public Span tag(String key, Object value) {
+        if (sampled) {
+            if (tags == null) {
+                tags = new LinkedHashMap<>();
+            }
+            tags.put(key, String.valueOf(value));
+        }
+        return this;
+    }
+
+    /** ends it, makes its parent the current span again, and exports it if it is sampled */
+    @Override
+    public void close() {
+        if (sampled && durationMicros < 0) {
+            durationMicros = (System.nanoTime() - startNanos) / 1000L;
+        }
+        tracer.finish(this);
+    }
+
+    Span getPrevious() {
+        return previous;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return the context to hand on to other threads or processes, in the W3C "traceparent" format, or null if
+     * it isn't sampled. see {@link Tracer#resume(String, String)}
+     */
+    public String getTraceParent() {
+        return sampled ? "00-" + traceId + "-" + spanId + "-01" : null;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /** null if it is the root of the trace */
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    /** since the epoch */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /** -1 until it is closed */
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public Map<String, String> getTags() {
+        return tags == null ? Collections.emptyMap() : tags;
+    }
+
+    @Override
+    public String toString() {
+        return sampled ? name + " " + traceId + "/" + spanId + " " + durationMicros + "us" : "unsampled";
+    }
+}
@@ -0,0 +1,8 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+/** where spans go once they are finished. only sampled spans are exported. */
+public interface SpanExporter {
+
+    /** called in the thread which closed the span, so it should be quick */
+    void export(Span span);
+}
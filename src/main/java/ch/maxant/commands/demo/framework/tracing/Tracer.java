@@ -0,0 +1,139 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * starts spans and keeps track of the current one per thread. whether a trace is recorded is decided once, when
+ * its root span is started, using <code>tracing.sample.rate</code> (0 to 1), and inherited by all its children,
+ * including those in other threads or processes which resume it using its trace context.
+ *
+ * finished spans go to the exporter named by <code>tracing.exporter</code>: <code>memory</code> keeps the last
+ * <code>tracing.memory.capacity</code> spans, <code>file</code> appends them to <code>tracing.file</code>, and
+ * <code>none</code> drops them.
+ */
+@ApplicationScoped
+public class Tracer {
+
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    private double sampleRate;
+
+    private SpanExporter exporter;
+
+    /** for the container */
+    public Tracer() {
+    }
+
+    /** for tests */
+    public Tracer(double sampleRate, SpanExporter exporter) {
+        this.sampleRate = sampleRate;
+        this.exporter = exporter;
+    }
+
+    @PostConstruct
+    public void init() {
+        sampleRate = Double.parseDouble(System.getProperty("tracing.sample.rate", "0.1"));
+        String type = System.getProperty("tracing.exporter", "memory");
+        switch (type) {
+            case "memory":
+                exporter = new InMemorySpanExporter(Integer.getInteger("tracing.memory.capacity", 1000));
+                break;
+            case "file":
+                exporter = new FileSpanExporter(Paths.get(System.getProperty("tracing.file", "spans.jsonl")));
+                break;
+            case "none":
+                exporter = span -> {};
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tracing.exporter " + type + ", use memory, file or none");
+        }
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+        if (exporter instanceof AutoCloseable) {
+            ((AutoCloseable) exporter).close();
+        }
+    }
+
+    public SpanExporter getExporter() {
+        return exporter;
+    }
+
+    /** @return the current span of this thread, or null if there isn't one */
+    public Span current() {
+        return current.get();
+    }
+
+    /** @return the context of the current span, to hand on, or null if there is none or it isn't sampled */
+    public String currentTraceParent() {
+        Span span = current.get();
+        return span == null ? null : span.getTraceParent();
+    }
+
+    /** starts a child of the current span, or a new trace if there is none. it becomes the current span. */
+    public Span start(String name) {
+        Span parent = current.get();
+        if (parent == null) {
+            return push(sample() ? new Span(this, null, true, newId(16), newId(8), null, name) : new Span(this, null));
+        }
+        return push(parent.isSampled()
+                ? new Span(this, parent, true, parent.getTraceId(), newId(8), parent.getSpanId(), name)
+                : new Span(this, parent));
+    }
+
+    /**
+     * starts a child of a span from another thread or process, e.g. the one which persisted a command. it becomes
+     * the current span, regardless of what was current before.
+     * @param traceParent from {@link Span#getTraceParent()}. if it is null or invalid, the span isn't sampled,
+     *                    since the decision was made at the root.
+     */
+    public Span resume(String name, String traceParent) {
+        Span previous = current.get();
+        //00-<32 hex trace ID>-<16 hex span ID>-<flags>
+        if (traceParent == null || traceParent.length() != 55 || !traceParent.endsWith("-01")) {
+            return push(new Span(this, previous));
+        }
+        return push(new Span(this, previous, true, traceParent.substring(3, 35), newId(8), traceParent.substring(36, 52), name));
+    }
+
+    void finish(Span span) {
+        if (current.get() == span) {
+            if (span.getPrevious() == null) {
+                current.remove(); //don't leave anything behind in pooled threads
+            } else {
+                current.set(span.getPrevious());
+            }
+        }
+        if (span.isSampled()) {
+            exporter.export(span);
+        }
+    }
+
+    private Span push(Span span) {
+        current.set(span);
+        return span;
+    }
+
+    private boolean sample() {
+        return sampleRate >= 1.0 || (sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /** random hex, of the given number of bytes */
+    private static String newId(int bytes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder sb = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i += 8) {
+            String hex = Long.toHexString(random.nextLong());
+            for (int j = hex.length(); j < 16; j++) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+}
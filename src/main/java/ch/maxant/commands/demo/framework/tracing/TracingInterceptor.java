@@ -0,0 +1,36 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import javax.inject.Inject;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** wraps calls to methods annotated with {@link Traced} in a span named after the class and method */
+@Traced
+@Interceptor
+public class TracingInterceptor {
+
+    /** so that the name isn't built on every call */
+    private static final Map<Method, String> NAMES = new ConcurrentHashMap<>();
+
+    @Inject
+    Tracer tracer;
+
+    @AroundInvoke
+    public Object trace(InvocationContext ic) throws Exception {
+        Method method = ic.getMethod();
+        String name = NAMES.computeIfAbsent(method, m -> m.getDeclaringClass().getSimpleName() + "." + m.getName());
+        Span span = tracer.start(name);
+        try {
+            return ic.proceed();
+        } catch (Exception e) {
+            span.tag("error", e.getClass().getName());
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
+}
@@ -0,0 +1,3 @@
+-- which instance (and which of its batches) reserved the command. see CommandRepository#lockCommands
+ALTER TABLE T_COMMAND
+ADD COLUMN OWNER VARCHAR(100) NULL DEFAULT NULL;
@@ -0,0 +1,7 @@
+-- contexts can be stored in a compact binary form instead of as JSON text. the first byte says how it is encoded.
+-- exactly one of CONTEXT and CONTEXT_DATA is set.
+ALTER TABLE T_COMMAND
+ADD COLUMN CONTEXT_DATA BLOB NULL DEFAULT NULL;
+
+ALTER TABLE T_COMMAND
+MODIFY COLUMN CONTEXT TEXT NULL;
@@ -0,0 +1,4 @@
+-- failed commands are retried with a backoff, so they are only claimed once NEXT_ATTEMPT_AT has passed.
+-- existing commands are due straight away.
+ALTER TABLE T_COMMAND
+ADD COLUMN NEXT_ATTEMPT_AT TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3);
@@ -0,0 +1,25 @@
+-- commands which have been given up on are moved here, so that T_COMMAND only contains work which is still to do.
+-- the ID is the one the command had in T_COMMAND, so that it can be traced in the logs.
+CREATE TABLE T_COMMAND_DEAD (
+    ID BIGINT NOT NULL,
+    COMMAND TEXT NOT NULL,
+    ATTEMPTS INT NOT NULL,
+    IDEMPOTENCY_ID VARCHAR(36) NOT NULL,
+    CONTEXT TEXT NULL,
+    CONTEXT_DATA BLOB NULL,
+    LAST_ERROR VARCHAR(1000) NULL,
+    STACK_DIGEST VARCHAR(64) NULL,
+    DIED TIMESTAMP(3) NOT NULL,
+
+    PRIMARY KEY (ID)
+);
+
+CREATE INDEX IDX_COMMAND_DEAD_DIED
+    ON T_COMMAND_DEAD (DIED);
+
+-- move the ones which were given up on before this version, which are still in T_COMMAND
+INSERT INTO T_COMMAND_DEAD (ID, COMMAND, ATTEMPTS, IDEMPOTENCY_ID, CONTEXT, CONTEXT_DATA, DIED)
+    SELECT ID, COMMAND, ATTEMPTS, IDEMPOTENCY_ID, CONTEXT, CONTEXT_DATA, NOW()
+    FROM T_COMMAND WHERE ATTEMPTS >= 5;
+
+DELETE FROM T_COMMAND WHERE ATTEMPTS >= 5;
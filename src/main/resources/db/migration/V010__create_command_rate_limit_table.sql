@@ -0,0 +1,10 @@
+-- one token bucket per type of command which is rate limited across the whole cluster. instances lease a few
+-- tokens at a time from it, by locking the row, refilling it for the time which has passed since REFILLED, and
+-- taking what they need. rows are created by the first instance which needs them.
+CREATE TABLE T_COMMAND_RATE_LIMIT (
+    COMMAND VARCHAR(255) NOT NULL,
+    TOKENS DOUBLE NOT NULL,
+    REFILLED TIMESTAMP(3) NOT NULL,
+
+    PRIMARY KEY (COMMAND)
+);
@@ -0,0 +1,4 @@
+-- when the command was created, so that we can measure how long it waits before being started.
+-- existing commands get the time of the migration.
+ALTER TABLE T_COMMAND
+ADD COLUMN CREATED TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3);
@@ -0,0 +1,4 @@
+-- the trace context of whoever created the command, in the W3C traceparent format, so that executing it, even on
+-- another instance or after a retry, can be followed as part of the same trace. null if it wasn't sampled.
+ALTER TABLE T_COMMAND
+ADD COLUMN TRACE_PARENT VARCHAR(55) NULL;
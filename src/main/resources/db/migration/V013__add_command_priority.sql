@@ -0,0 +1,7 @@
+-- commands are claimed in lanes, one per priority (2 = HIGH, 1 = NORMAL, 0 = LOW), so that a huge backlog of
+-- unimportant commands doesn't hold up important ones. existing commands are NORMAL.
+ALTER TABLE T_COMMAND
+ADD COLUMN PRIORITY INT NOT NULL DEFAULT 1;
+
+ALTER TABLE T_COMMAND_DEAD
+ADD COLUMN PRIORITY INT NOT NULL DEFAULT 1;
@@ -0,0 +1,20 @@
+-- commands are spread over logical partitions, so that instances can claim from their own partitions first,
+-- rather than all competing for the same rows. existing commands are spread over 16 partitions using their ID.
+-- that is the default for commandservice.partitions, but the number is fixed here on purpose: an instance owns
+-- the keys which are its index modulo the number of instances, so every key is claimed by someone, whatever
+-- commandservice.partitions is set to.
+ALTER TABLE T_COMMAND
+ADD COLUMN PARTITION_KEY INT NOT NULL DEFAULT 0;
+
+UPDATE T_COMMAND SET PARTITION_KEY = MOD(ID, 16);
+
+ALTER TABLE T_COMMAND_DEAD
+ADD COLUMN PARTITION_KEY INT NOT NULL DEFAULT 0;
+
+-- the only index used for claiming and unlocking, built here because this is the last of its columns to be added.
+-- each lane is claimed with "LOCKED IS NULL AND PRIORITY = ? AND NEXT_ATTEMPT_AT <= now AND <partitions> ORDER BY
+-- NEXT_ATTEMPT_AT, ID", so the commands which are due in a lane are a range at the start of its part of the index,
+-- already in the right order, regardless of how many are waiting in the other lanes, and the ones in other
+-- instances' partitions are skipped without reading their rows. unlocking uses it for its range on LOCKED.
+CREATE INDEX IDX_COMMAND_LANE_PARTITION
+    ON T_COMMAND (LOCKED, PRIORITY, NEXT_ATTEMPT_AT, ID, PARTITION_KEY);
@@ -0,0 +1,8 @@
+-- commands with a dedup key, e.g. the type of command plus the number of a case, are merged into the one which is
+-- still pending, rather than inserted again. the key is cleared when a command is claimed, so the index only ever
+-- contains pending commands, and a new one can be inserted while the previous one is being executed.
+ALTER TABLE T_COMMAND
+ADD COLUMN DEDUP_KEY VARCHAR(200);
+
+CREATE UNIQUE INDEX IDX_COMMAND_DEDUP_KEY
+    ON T_COMMAND (DEDUP_KEY);
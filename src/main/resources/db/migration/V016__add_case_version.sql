@@ -0,0 +1,3 @@
+-- incremented by every change, for optimistic locking, and served as the ETag of the case
+ALTER TABLE T_CASE
+ADD COLUMN VERSION BIGINT NOT NULL DEFAULT 0;
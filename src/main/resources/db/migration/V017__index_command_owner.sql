@@ -0,0 +1,4 @@
+-- a batch which is claimed using a single update is read back using its owner token, which is unique per batch, so
+-- that select only needs to read the handful of rows in the batch rather than scanning the whole table.
+CREATE INDEX IDX_COMMAND_OWNER
+    ON T_COMMAND (OWNER);
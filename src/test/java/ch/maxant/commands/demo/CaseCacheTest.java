@@ -0,0 +1,109 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.commands.CommandMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+import static org.junit.Assert.*;
+
+public class CaseCacheTest {
+
+    private CaseCache cache = new CaseCache();
+
+    private AtomicLong now = new AtomicLong(1000L);
+
+    private Map<Long, Case> database = new HashMap<>();
+
+    private AtomicInteger loads = new AtomicInteger();
+
+    private LongFunction<Case> loader = nr -> {
+        loads.incrementAndGet();
+        return database.get(nr);
+    };
+
+    @Before
+    public void setup() {
+        cache.metrics = new CommandMetrics();
+        cache.maxSize = 2;
+        cache.ttl = 100L;
+        cache.clock = now::get;
+        cache.init();
+
+        database.put(1L, new Case());
+        database.put(2L, new Case());
+        database.put(3L, new Case());
+    }
+
+    @Test
+    public void testHitsMissesAndExpiry() {
+        assertSame(database.get(1L), cache.get(1L, loader));
+        assertSame(database.get(1L), cache.get(1L, loader));
+        assertEquals(1, loads.get());
+
+        // //////////////////////////////
+        // unknown cases aren't cached, so that they show up as soon as they are created
+        // //////////////////////////////
+        assertNull(cache.get(4L, loader));
+        Case created = new Case();
+        database.put(4L, created);
+        assertSame(created, cache.get(4L, loader));
+        assertEquals(3, loads.get());
+
+        // //////////////////////////////
+        // expired => loaded again
+        // //////////////////////////////
+        now.addAndGet(100L);
+        cache.get(1L, loader);
+        assertEquals(4, loads.get());
+
+        MeterRegistry registry = cache.metrics.getRegistry();
+        assertEquals(1.0, registry.find("cases.cache").tags("result", "hit").counter().count(), 0.0);
+        assertEquals(4.0, registry.find("cases.cache").tags("result", "miss").counter().count(), 0.0);
+        assertEquals(2.0, registry.find("cases.cache.size").gauge().value(), 0.0);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.get(1L, loader);
+        cache.get(2L, loader);
+        cache.get(1L, loader); //so 2 is the least recently used
+        cache.get(3L, loader);
+        assertEquals(2, cache.size());
+        assertEquals(3, loads.get());
+
+        cache.get(1L, loader);
+        assertEquals(3, loads.get());
+        cache.get(2L, loader);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testInvalidation() {
+        cache.get(1L, loader);
+        Case changed = new Case();
+        database.put(1L, changed);
+        cache.invalidate(1L);
+        assertSame(changed, cache.get(1L, loader));
+
+        // //////////////////////////////
+        // a case which is loaded while it is being changed isn't cached in its old form
+        // //////////////////////////////
+        Case old = database.get(2L);
+        Case result = cache.get(2L, nr -> {
+            cache.invalidate(2L); //the change commits while we are reading the old version
+            return old;
+        });
+        assertSame(old, result);
+        Case updated = new Case();
+        database.put(2L, updated);
+        assertSame(updated, cache.get(2L, loader));
+    }
+}
@@ -0,0 +1,132 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class CaseImporterTest {
+
+    private CaseImporter importer = new CaseImporter();
+
+    /** the numbers of the cases in each batch which was written */
+    private List<List<Long>> batches = new ArrayList<>();
+
+    private boolean failBatches = false;
+
+    @Before
+    public void setup() {
+        importer.logger = mock(Logger.class);
+        importer.batchSize = 2;
+        importer.service = new ClaimService() {
+            @Override
+            public List<CaseImportResult> mergeCases(List<Case> cases) {
+                if (failBatches) {
+                    throw new IllegalStateException("database is down");
+                }
+                batches.add(cases.stream().map(Case::getNr).collect(Collectors.toList()));
+                return cases.stream().map(c -> CaseImportResult.written(c.getNr(), true, 0L)).collect(Collectors.toList());
+            }
+        };
+    }
+
+    @Test
+    public void testJsonArrayIsWrittenInBatches() throws Exception {
+        List<JsonNode> results = importCases("[{\"nr\": 1}, {\"nr\": 2}, {\"nr\": 3, \"description\": \"hail\"}, {\"nr\": 4}, {\"nr\": 5}]");
+
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L), Arrays.asList(3L, 4L), Arrays.asList(5L)), batches);
+        assertEquals(5, results.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, results.get(i).get("index").asInt());
+            assertEquals(i + 1, results.get(i).get("nr").asLong());
+            assertEquals("CREATED", results.get(i).get("status").asText());
+            assertEquals(0L, results.get(i).get("version").asLong());
+            assertNull(results.get(i).get("error"));
+        }
+    }
+
+    @Test
+    public void testBadCasesDontStopTheRest() throws Exception {
+        String tooLong = new String(new char[101]).replace('\0', 'x');
+        List<JsonNode> results = importCases(
+                "{\"nr\": 1}\n" +
+                "{\"nr\": \"one\"}\n" +
+                "{\"nr\": 3, \"description\": \"" + tooLong + "\"}\n" +
+                "{\"nr\": 4}\n");
+
+        assertEquals(Arrays.asList(Arrays.asList(1L), Arrays.asList(4L)), batches);
+        assertEquals(4, results.size());
+        assertEquals("CREATED", results.get(0).get("status").asText());
+        assertEquals("FAILED", results.get(1).get("status").asText());
+        assertTrue(results.get(1).get("error").asText().startsWith("Not a case"));
+        assertNull(results.get(1).get("nr"));
+        assertEquals("FAILED", results.get(2).get("status").asText());
+        assertEquals(3L, results.get(2).get("nr").asLong());
+        assertEquals("CREATED", results.get(3).get("status").asText());
+        assertEquals(3, results.get(3).get("index").asInt());
+    }
+
+    @Test
+    public void testCasesWithoutNumberAreRejected() throws Exception {
+        List<JsonNode> results = importCases("[{}, {\"description\": \"x\"}, {\"nr\": null}, 7, {\"nr\": 0}]");
+
+        assertEquals(Collections.singletonList(Collections.singletonList(0L)), batches);
+        assertEquals(5, results.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("FAILED", results.get(i).get("status").asText());
+            assertTrue(results.get(i).get("error").asText().startsWith("Not a case"));
+            assertNull(results.get(i).get("nr"));
+        }
+        assertEquals("CREATED", results.get(4).get("status").asText()); //0 is a number like any other, if it is given
+    }
+
+    @Test
+    public void testInvalidJsonStopsTheImport() throws Exception {
+        List<JsonNode> results = importCases("{\"nr\": 1}\n{\"nr\": 2}\n{\"nr\": 3}\n{\"nr\": 4,,}\n{\"nr\": 5}\n");
+
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L), Arrays.asList(3L)), batches);
+        assertEquals(4, results.size());
+        assertEquals("CREATED", results.get(2).get("status").asText());
+        assertEquals("FAILED", results.get(3).get("status").asText());
+        assertTrue(results.get(3).get("error").asText().startsWith("Not valid JSON"));
+    }
+
+    @Test
+    public void testFailedBatchIsReportedPerCase() throws Exception {
+        failBatches = true;
+        List<JsonNode> results = importCases("[{\"nr\": 1}, {\"nr\": 2}, {\"nr\": 3}]");
+
+        assertEquals(3, results.size());
+        for (JsonNode result : results) {
+            assertEquals("FAILED", result.get("status").asText());
+            assertEquals("database is down", result.get("error").asText());
+        }
+    }
+
+    private List<JsonNode> importCases(String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        importer.importCases(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+
+        ObjectMapper mapper = new ObjectMapper();
+        List<JsonNode> results = new ArrayList<>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            results.add(mapper.readTree(line));
+        }
+        return results;
+    }
+}
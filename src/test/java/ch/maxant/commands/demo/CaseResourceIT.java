@@ -3,6 +3,7 @@ package ch.maxant.commands.demo;
 import com.jayway.restassured.builder.RequestSpecBuilder;
 import com.jayway.restassured.http.ContentType;
 import com.jayway.restassured.response.Header;
+import com.jayway.restassured.response.Response;
 import com.jayway.restassured.specification.RequestSpecification;
 import io.undertow.util.StatusCodes;
 import org.junit.Test;
@@ -12,6 +13,8 @@ import javax.ws.rs.core.MediaType;
 
 import static com.jayway.restassured.RestAssured.given;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 
 public class CaseResourceIT {
 
@@ -23,7 +26,7 @@ public class CaseResourceIT {
         builder.setAccept(ContentType.JSON);
         RequestSpecification spec = builder.build();
 
-        String body = given(spec)
+        Response response = given(spec)
                 .when()
                 .get("/demo/cases/case/1")
                 .then()
@@ -32,18 +35,67 @@ public class CaseResourceIT {
                 .body("nr", is(1))
                 .body("description", is("It started to hail and then..."))
                 .extract()
-                .response()
-                .body()
-                .asString();
+                .response();
+        String body = response.body().asString();
+        String etag = response.getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag);
 
+        // //////////////////////////////
+        // unchanged => not modified, without a body
+        // //////////////////////////////
         given(spec)
-                .body(body)
+                .header(new Header(HttpHeaders.IF_NONE_MATCH, etag))
+                .when()
+                .get("/demo/cases/case/1")
+                .then()
+                .statusCode(StatusCodes.NOT_MODIFIED);
+
+        // //////////////////////////////
+        // change based on what we read => ok, with a new version
+        // //////////////////////////////
+        String changed = body.replace("It started to hail and then...", "It started to hail and then it rained...");
+        String newEtag = given(spec)
+                .body(changed)
                 .when()
                 .header(new Header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON))
+                .header(new Header(HttpHeaders.IF_MATCH, etag))
                 .put("/demo/cases/case")
                 .then()
                 .log()
                 .body()
+                .statusCode(StatusCodes.NO_CONTENT)
+                .extract()
+                .header(HttpHeaders.ETAG);
+        assertNotEquals(etag, newEtag);
+
+        // //////////////////////////////
+        // change based on the old version => precondition failed, rather than a lost update
+        // //////////////////////////////
+        given(spec)
+                .body(changed)
+                .when()
+                .header(new Header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON))
+                .header(new Header(HttpHeaders.IF_MATCH, etag))
+                .put("/demo/cases/case")
+                .then()
+                .statusCode(StatusCodes.PRECONDITION_FAILED);
+
+        given(spec)
+                .header(new Header(HttpHeaders.IF_NONE_MATCH, etag))
+                .when()
+                .get("/demo/cases/case/1")
+                .then()
+                .statusCode(StatusCodes.OK);
+
+        // //////////////////////////////
+        // without If-Match => overwritten, like before
+        // //////////////////////////////
+        given(spec)
+                .body(body)
+                .when()
+                .header(new Header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON))
+                .put("/demo/cases/case")
+                .then()
                 .statusCode(StatusCodes.NO_CONTENT);
     }
 
@@ -0,0 +1,166 @@
+package ch.maxant.commands.demo;
+
+import ch.maxant.commands.demo.data.Case;
+import ch.maxant.commands.demo.framework.commands.CommandMetrics;
+import ch.maxant.commands.demo.framework.jaxrs.JacksonConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.enterprise.event.Event;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class ClaimServiceTest extends DbTest {
+
+    private ObjectMapper mapper = JacksonConfig.newObjectMapper();
+
+    private ClaimService service;
+
+    /** the numbers of the cases which tasks were created for */
+    private List<Long> tasks = new ArrayList<>();
+
+    @Before
+    public void setup(){
+        super.setup();
+
+        service = new ClaimService();
+        service.em = em;
+        service.caseCache = new CaseCache();
+        service.caseCache.metrics = new CommandMetrics();
+        service.caseCache.init();
+        service.caseChanged = mock(Event.class);
+        service.taskService = new TaskService() {
+            @Override
+            public void createTask(long caseNr, String textForTask) {
+                tasks.add(caseNr);
+            }
+            @Override
+            public void createTasks(List<Long> caseNrs, String textForTask) {
+                tasks.addAll(caseNrs);
+            }
+        };
+    }
+
+    @Test
+    public void testMergeCaseChecksTheExpectedVersion() throws Exception {
+        long nr = System.nanoTime(); //the cases aren't deleted between tests
+        Case original = newCase(UUID.randomUUID().toString(), nr, "hail");
+        begin();
+        em.persist(original);
+        em.getTransaction().commit();
+        assertEquals(0L, original.getVersion());
+
+        // //////////////////////////////
+        // at the expected version => changed, with a new version
+        // //////////////////////////////
+        begin();
+        Case merged = service.mergeCase(detached(original, "rain"), 0L);
+        em.getTransaction().commit();
+        assertNotNull(merged);
+        assertEquals(1L, merged.getVersion());
+        assertEquals(Collections.singletonList(nr), tasks);
+
+        // //////////////////////////////
+        // based on the old version => not changed
+        // //////////////////////////////
+        begin();
+        assertNull(service.mergeCase(detached(original, "snow"), 0L));
+        em.getTransaction().rollback();
+        assertEquals("rain", find(original).getDescription());
+        assertEquals(1, tasks.size());
+
+        // //////////////////////////////
+        // without an expected version => overwrites whatever is there
+        // //////////////////////////////
+        begin();
+        merged = service.mergeCase(detached(original, "sleet"), null);
+        em.getTransaction().commit();
+        assertEquals(2L, merged.getVersion());
+        assertEquals("sleet", find(original).getDescription());
+        assertEquals(Arrays.asList(nr, nr), tasks);
+
+        // //////////////////////////////
+        // a case which doesn't exist can't be at the expected version, but is created without one
+        // //////////////////////////////
+        Case missing = newCase(UUID.randomUUID().toString(), nr + 1, "fog");
+        begin();
+        assertNull(service.mergeCase(missing, 0L));
+        em.getTransaction().rollback();
+        assertNull(find(missing));
+
+        begin();
+        assertNotNull(service.mergeCase(missing, null));
+        em.getTransaction().commit();
+        assertEquals("fog", find(missing).getDescription());
+        assertEquals(Arrays.asList(nr, nr, nr + 1), tasks);
+    }
+
+    @Test
+    public void testMergeCasesReportsTheVersionOfEachWrite() throws Exception {
+        long nr = System.nanoTime(); //the cases aren't deleted between tests
+        Case existing = newCase(UUID.randomUUID().toString(), nr, "hail");
+        begin();
+        em.persist(existing);
+        em.getTransaction().commit();
+
+        // //////////////////////////////
+        // the same cases more than once in a batch => each result has the version its own write created
+        // //////////////////////////////
+        begin();
+        List<CaseImportResult> results = service.mergeCases(Arrays.asList(
+                newCase(UUID.randomUUID().toString(), nr, "rain"),
+                newCase(UUID.randomUUID().toString(), nr + 1, "fog"),
+                newCase(UUID.randomUUID().toString(), nr, "snow"),
+                newCase(UUID.randomUUID().toString(), nr + 1, "mist")));
+        em.getTransaction().commit();
+
+        assertEquals(4, results.size());
+        assertEquals(CaseImportResult.Status.UPDATED, results.get(0).getStatus());
+        assertEquals(Long.valueOf(1L), results.get(0).getVersion());
+        assertEquals(CaseImportResult.Status.CREATED, results.get(1).getStatus());
+        assertEquals(Long.valueOf(0L), results.get(1).getVersion());
+        assertEquals(CaseImportResult.Status.UPDATED, results.get(2).getStatus());
+        assertEquals(Long.valueOf(2L), results.get(2).getVersion());
+        assertEquals(CaseImportResult.Status.UPDATED, results.get(3).getStatus()); //it was created earlier in the batch
+        assertEquals(Long.valueOf(1L), results.get(3).getVersion());
+
+        assertEquals("snow", find(existing).getDescription());
+        assertEquals(Arrays.asList(nr, nr + 1), tasks); //one task per case
+    }
+
+    /** like a case which was read by a client, changed and sent back */
+    private Case detached(Case insuranceCase, String description) throws Exception {
+        ObjectNode json = mapper.valueToTree(insuranceCase);
+        json.put("description", description);
+        return mapper.treeToValue(json, Case.class);
+    }
+
+    private Case newCase(String id, long nr, String description) throws Exception {
+        ObjectNode json = mapper.createObjectNode();
+        json.put("id", id);
+        json.put("nr", nr);
+        json.put("description", description);
+        return mapper.treeToValue(json, Case.class);
+    }
+
+    private Case find(Case insuranceCase) {
+        begin();
+        Case found = em.find(Case.class, insuranceCase.getId());
+        em.getTransaction().commit();
+        return found;
+    }
+
+    /** like the container, each transaction starts with a clean persistence context */
+    private void begin() {
+        em.clear();
+        em.getTransaction().begin();
+    }
+}
@@ -42,7 +42,7 @@ public abstract class DbTest {
 
     private void deleteData(Flyway flyway) {
 
-        String[] tables = {"T_COMMAND"};
+        String[] tables = {"T_COMMAND", "T_COMMAND_DEAD", "T_COMMAND_RATE_LIMIT"};
 
         try{
             Connection conn = flyway.getDataSource().getConnection();
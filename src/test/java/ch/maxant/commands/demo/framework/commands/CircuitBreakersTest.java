@@ -0,0 +1,108 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ch.maxant.commands.demo.framework.commands.CircuitBreakers.State.*;
+import static org.junit.Assert.*;
+
+public class CircuitBreakersTest {
+
+    private AtomicLong now = new AtomicLong(1000L);
+
+    private CircuitBreakers breakers;
+
+    @Before
+    public void setup(){
+        System.setProperty("commandservice.breaker.failures", "3");
+        System.setProperty("commandservice.breaker.wait", "100");
+        System.setProperty("commandservice.breaker.fragile.failures", "1");
+
+        breakers = new CircuitBreakers();
+        breakers.clock = now::get;
+    }
+
+    @After
+    public void teardown(){
+        System.clearProperty("commandservice.breaker.failures");
+        System.clearProperty("commandservice.breaker.wait");
+        System.clearProperty("commandservice.breaker.fragile.failures");
+    }
+
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        assertEquals(CLOSED, breakers.getState("name"));
+
+        breakers.onFailure("name");
+        breakers.onFailure("name");
+        breakers.onSuccess("name"); //resets the count
+        breakers.onFailure("name");
+        breakers.onFailure("name");
+        assertEquals(CLOSED, breakers.getState("name"));
+        assertTrue(breakers.tryAcquire("name"));
+
+        breakers.onFailure("name");
+        assertEquals(OPEN, breakers.getState("name"));
+        assertFalse(breakers.tryAcquire("name"));
+        assertEquals(Collections.singleton("name"), breakers.getBlockedCommands());
+        assertEquals(1L, breakers.getTimesOpened("name"));
+
+        //overridden per type
+        breakers.onFailure("fragile");
+        assertEquals(OPEN, breakers.getState("fragile"));
+    }
+
+    @Test
+    public void testHalfOpenLetsASingleProbeThrough() {
+        breakers.onFailure("fragile");
+        assertFalse(breakers.tryAcquire("fragile"));
+
+        now.addAndGet(99L);
+        assertFalse(breakers.tryAcquire("fragile"));
+
+        now.addAndGet(1L);
+        assertTrue(breakers.getBlockedCommands().isEmpty()); //worth claiming one again
+        assertTrue(breakers.tryAcquire("fragile"));
+        assertEquals(HALF_OPEN, breakers.getState("fragile"));
+        assertFalse(breakers.tryAcquire("fragile")); //only one at a time
+        assertEquals(Collections.singleton("fragile"), breakers.getBlockedCommands());
+
+        //probe wasn't executed after all, so another may go
+        breakers.release("fragile");
+        assertTrue(breakers.tryAcquire("fragile"));
+
+        //probe fails => open again, for another wait
+        breakers.onFailure("fragile");
+        assertEquals(OPEN, breakers.getState("fragile"));
+        assertEquals(2L, breakers.getTimesOpened("fragile"));
+        assertFalse(breakers.tryAcquire("fragile"));
+
+        //probe succeeds => closed
+        now.addAndGet(100L);
+        assertTrue(breakers.tryAcquire("fragile"));
+        breakers.onSuccess("fragile");
+        assertEquals(CLOSED, breakers.getState("fragile"));
+        assertTrue(breakers.tryAcquire("fragile"));
+        assertTrue(breakers.tryAcquire("fragile"));
+    }
+
+    @Test
+    public void testLateFailuresDontExtendTheWait() {
+        breakers.onFailure("fragile");
+        assertEquals(OPEN, breakers.getState("fragile"));
+
+        //commands which were started before it opened fail after it
+        now.addAndGet(50L);
+        breakers.onFailure("fragile");
+        breakers.onFailure("fragile");
+        assertEquals(1L, breakers.getTimesOpened("fragile"));
+
+        now.addAndGet(50L);
+        assertTrue(breakers.tryAcquire("fragile")); //still after the original wait
+        assertEquals(HALF_OPEN, breakers.getState("fragile"));
+    }
+}
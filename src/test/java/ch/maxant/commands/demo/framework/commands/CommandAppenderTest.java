@@ -0,0 +1,118 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.DbTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class CommandAppenderTest extends DbTest {
+
+    private CommandAppender appender;
+
+    /** the size of each batch which was committed */
+    private List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean failCommit = false;
+
+    @Before
+    public void setup(){
+        super.setup();
+
+        appender = new CommandAppender();
+        appender.logger = mock(Logger.class);
+        appender.metrics = new CommandMetrics();
+        appender.batchSize = 10;
+        appender.maxWait = 200L; //long enough that everyone gets into a batch, even on a slow machine
+        appender.commandRepo = new CommandRepository() {
+            @Override
+            public void createAll(List<Command> commands) {
+                //like the container would, with REQUIRES_NEW
+                em.getTransaction().begin();
+                try {
+                    super.createAll(commands);
+                    if (failCommit) {
+                        throw new IllegalStateException("commit failed");
+                    }
+                    em.getTransaction().commit();
+                } finally {
+                    if (em.getTransaction().isActive()) {
+                        em.getTransaction().rollback();
+                    }
+                    em.clear();
+                }
+                batches.add(commands.size());
+            }
+        };
+        appender.commandRepo.em = em;
+        appender.commandRepo.logger = appender.logger;
+    }
+
+    @After
+    public void shutdown(){
+        appender.shutdown();
+    }
+
+    @Test
+    public void testCallersShareCommits() throws Exception {
+        List<Future<?>> results = appendConcurrently(20);
+        for (Future<?> result : results) {
+            result.get(10, TimeUnit.SECONDS); //returns once it is committed
+        }
+
+        assertEquals(20, batches.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batches.toString(), batches.size() < 20);
+        assertTrue(batches.toString(), batches.stream().allMatch(size -> size <= 10));
+
+        List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+        assertEquals(20, cmds.size());
+        assertTrue(cmds.stream().allMatch(c -> c.getLocked() != null)); //this instance dispatches them itself
+        assertEquals(20.0, appender.metrics.getRegistry().find("commands.append.size").summary().totalAmount(), 0.0);
+    }
+
+    @Test
+    public void testFailedCommitIsReportedToEveryCaller() throws Exception {
+        failCommit = true;
+
+        List<Future<?>> results = appendConcurrently(5);
+        for (Future<?> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("expected the commit to fail");
+            } catch (ExecutionException e) {
+                assertEquals("commit failed", e.getCause().getMessage());
+            }
+        }
+        assertTrue(batches.isEmpty());
+        assertTrue(em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList().isEmpty());
+    }
+
+    private List<Future<?>> appendConcurrently(int callers) {
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            results.add(pool.submit(() -> {
+                go.await();
+                appender.append(new Command("name", "{}"));
+                return null;
+            }));
+        }
+        go.countDown();
+        pool.shutdown();
+        return results;
+    }
+}
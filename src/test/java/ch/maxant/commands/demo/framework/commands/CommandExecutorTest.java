@@ -0,0 +1,81 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandExecutorTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setup(){
+        System.setProperty("commandservice.executor.concurrency.slow", "2");
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void teardown(){
+        System.clearProperty("commandservice.executor.concurrency.slow");
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testCapacityAndConcurrencyLimits() throws Exception {
+        CommandExecutor executor = new CommandExecutor(pool, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        Runnable blocking = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        assertEquals(4, executor.getRemainingCapacity());
+        assertTrue(executor.getSaturatedCommands().isEmpty());
+
+        // //////////////////////////////
+        // the slow type is limited to two at a time
+        // //////////////////////////////
+        assertTrue(executor.submit("slow", blocking));
+        assertTrue(executor.submit("slow", blocking));
+        assertFalse(executor.submit("slow", blocking));
+        assertEquals(Collections.singleton("slow"), executor.getSaturatedCommands());
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(2, executor.getInFlight());
+        assertEquals(0, executor.getQueueDepth());
+
+        // //////////////////////////////
+        // others can still run, until the executor is full. the pool only has two threads, so they queue
+        // //////////////////////////////
+        assertTrue(executor.submit("other", blocking));
+        assertTrue(executor.submit("other", blocking));
+        assertFalse(executor.submit("other", blocking));
+        assertEquals(0, executor.getRemainingCapacity());
+        assertEquals(2, executor.getQueueDepth());
+
+        // //////////////////////////////
+        // once everything is finished, there is room again
+        // //////////////////////////////
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(4, executor.getRemainingCapacity());
+        assertEquals(0, executor.getInFlight());
+        assertEquals(0, executor.getQueueDepth());
+        assertTrue(executor.getSaturatedCommands().isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandMetricsTest {
+
+    private CommandMetrics metrics = new CommandMetrics();
+
+    private MeterRegistry registry = metrics.getRegistry();
+
+    @Test
+    public void testPerType() {
+        metrics.executed("a", TimeUnit.MILLISECONDS.toNanos(10), true);
+        metrics.executed("a", TimeUnit.MILLISECONDS.toNanos(30), true);
+        metrics.executed("a", TimeUnit.MILLISECONDS.toNanos(5), false);
+        metrics.retried("a");
+        metrics.died("b");
+
+        assertEquals(2L, registry.find("commands.execution").tags("command", "a", "outcome", "success").timer().count());
+        assertEquals(40.0, registry.find("commands.execution").tags("command", "a", "outcome", "success").timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1L, registry.find("commands.execution").tags("command", "a", "outcome", "failure").timer().count());
+        assertEquals(1.0, registry.find("commands.retries").tags("command", "a").counter().count(), 0.0);
+        assertEquals(1.0, registry.find("commands.dead").tags("command", "b").counter().count(), 0.0);
+        assertEquals(0.0, registry.find("commands.dead").tags("command", "a").counter().count(), 0.0);
+    }
+
+    @Test
+    public void testStartDelayIsOnlyRecordedForTheFirstAttempt() {
+        Command command = new Command("a", "{}");
+        metrics.started(command);
+        command.incrementAttempts();
+        metrics.started(command);
+
+        assertEquals(1L, registry.find("commands.start.delay").tags("command", "a").timer().count());
+    }
+
+    @Test
+    public void testBacklog() {
+        Map<String, Long> counts = new HashMap<>();
+        counts.put("a", 3L);
+        counts.put("b", 1L);
+        metrics.updateBacklog(counts);
+
+        assertEquals(3.0, registry.find("commands.backlog").tags("command", "a").gauge().value(), 0.0);
+        assertEquals(1.0, registry.find("commands.backlog").tags("command", "b").gauge().value(), 0.0);
+
+        //b is done
+        metrics.updateBacklog(Collections.singletonMap("a", 2L));
+        assertEquals(2.0, registry.find("commands.backlog").tags("command", "a").gauge().value(), 0.0);
+        assertEquals(0.0, registry.find("commands.backlog").tags("command", "b").gauge().value(), 0.0);
+    }
+
+    @Test
+    public void testScrape() {
+        metrics.claimed(3, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.unlocked(4);
+
+        String scraped = metrics.scrape();
+        assertTrue(scraped, scraped.contains("commands_claim_size_sum 3.0"));
+        assertTrue(scraped, scraped.contains("commands_unlocked_total 4.0"));
+    }
+}
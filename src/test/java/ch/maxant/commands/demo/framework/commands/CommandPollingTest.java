@@ -0,0 +1,96 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.DbTest;
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks that polling only claims the commands which are ready, among a backlog of ones which are not.
+ * how long that takes as the backlog grows is measured by PollingBenchmark, in the jmh profile.
+ */
+public class CommandPollingTest extends DbTest {
+
+    private static final int NUM_ROWS = 1000;
+
+    private static final int NUM_READY = 100;
+
+    private CommandRepository commandRepo;
+
+    @Before
+    public void setup(){
+        super.setup();
+
+        commandRepo = new CommandRepository();
+        commandRepo.em = em;
+    }
+
+    @Test
+    public void testPollingWithLargeBacklog() throws Exception {
+        seed();
+
+        // //////////////////////////////
+        // poll until everything which is ready has been claimed
+        // //////////////////////////////
+        Set<Long> claimed = new HashSet<>();
+        for(int i = 0; i < NUM_READY / 10; i++){
+            em.clear();
+            em.getTransaction().begin();
+            List<Command> cmds = commandRepo.lockCommands(10);
+            em.getTransaction().commit();
+
+            assertEquals(10, cmds.size());
+            cmds.forEach(c -> claimed.add(c.getId()));
+        }
+        assertEquals(NUM_READY, claimed.size());
+
+        // //////////////////////////////
+        // nothing else is ready, in particular none of the commands waiting to be retried
+        // //////////////////////////////
+        em.clear();
+        em.getTransaction().begin();
+        assertTrue(commandRepo.lockCommands(10).isEmpty());
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    /**
+     * half of the backlog is being processed by other instances, half failed and is waiting to be retried later.
+     * the few which are ready have the highest IDs, i.e. a table scan in ID order would have to read everything
+     * else first.
+     */
+    private void seed() {
+        Timestamp locked = Timestamp.valueOf(LocalDateTime.now());
+        Timestamp later = Timestamp.valueOf(LocalDateTime.now().plusHours(1));
+        em.getTransaction().begin();
+        em.unwrap(Session.class).doWork(conn -> {
+            String sql = "INSERT INTO T_COMMAND (COMMAND, ATTEMPTS, IDEMPOTENCY_ID, CONTEXT, LOCKED, OWNER, NEXT_ATTEMPT_AT) VALUES (?, ?, ?, ?, ?, ?, ?)";
+            try(PreparedStatement ps = conn.prepareStatement(sql)){
+                for(int i = 0; i < NUM_ROWS; i++){
+                    boolean ready = i >= NUM_ROWS - NUM_READY;
+                    boolean failed = !ready && i % 2 == 0;
+                    ps.setString(1, "name");
+                    ps.setInt(2, failed ? 1 : 0);
+                    ps.setString(3, UUID.randomUUID().toString());
+                    ps.setString(4, "{}");
+                    ps.setTimestamp(5, ready || failed ? null : locked);
+                    ps.setString(6, ready || failed ? null : "seed:1");
+                    ps.setTimestamp(7, failed ? later : locked);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+        em.getTransaction().commit();
+    }
+}
@@ -1,9 +1,15 @@
 package ch.maxant.commands.demo.framework.commands;
 
 import ch.maxant.commands.demo.DbTest;
+import ch.maxant.commands.demo.framework.tracing.InMemorySpanExporter;
+import ch.maxant.commands.demo.framework.tracing.Span;
+import ch.maxant.commands.demo.framework.tracing.Tracer;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 
 import javax.ejb.SessionContext;
@@ -12,13 +18,21 @@ import javax.ejb.TimerConfig;
 import javax.ejb.TimerService;
 import javax.enterprise.event.Event;
 import javax.enterprise.inject.Instance;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class CommandServiceTest extends DbTest {
@@ -29,17 +43,28 @@ public class CommandServiceTest extends DbTest {
 
     private Timer unlockTimer;
 
-    private ExecutableCommand executableCommand;
+    private ExecutableCommand<JsonNode> executableCommand;
 
     private boolean throwExceptionDuringCommandExecution = false;
 
     private AtomicInteger executionCount = new AtomicInteger(0);
 
+    private List<String> executedContexts = new ArrayList<>();
+
+    private InMemorySpanExporter spans = new InMemorySpanExporter(100);
+
+    /** each time the retry timer was scheduled */
+    private List<Long> pollDelays = new ArrayList<>();
+
     @Before
     public void setup(){
         super.setup();
 
         System.setProperty("commandservice.timeout", "0"); //so that unlocking causes immediate execution
+        System.setProperty("commandservice.poll.delay.min", "100");
+        System.setProperty("commandservice.poll.delay.max", "1000");
+        System.setProperty("commandservice.backoff.initial", "0"); //so that failed commands can be retried straight away
+        System.setProperty("commandservice.breaker.failures", "1000"); //only testBreakerOpensAndCloses wants it to open
 
         commandService = new CommandService();
         commandService.logger = mock(Logger.class);
@@ -48,6 +73,16 @@ public class CommandServiceTest extends DbTest {
         commandService.commandRepo.em = em;
         commandService.commandRepo.logger = commandService.logger;
 
+        commandService.contextCodec = new ContextCodec();
+        commandService.retryBackoff = new RetryBackoff();
+        commandService.circuitBreakers = new CircuitBreakers();
+        commandService.rateLimiters = new RateLimiters();
+        commandService.metrics = new CommandMetrics();
+        commandService.tracer = new Tracer(1.0, spans);
+
+        commandService.commandExecutor = new CommandExecutor(Runnable::run, 10); //synchronous, so that we can check the results straight away
+        commandService.commandInvoker = new CommandInvoker();
+
         commandService.timerService = mock(TimerService.class);
         commandService.context = mock(SessionContext.class);
         commandService.event = mock(Event.class);
@@ -57,21 +92,18 @@ public class CommandServiceTest extends DbTest {
         retryTimer = mock(Timer.class);
         when(retryTimer.getInfo()).thenReturn(CommandService.RETRY_COMMANDS);
         when(unlockTimer.getInfo()).thenReturn(CommandService.UNLOCK_TIMEDOUT_COMMANDS);
-        when(commandService.timerService.createIntervalTimer(anyLong(), anyLong(), any(TimerConfig.class)))
-                .then((i) -> {
-            TimerConfig c = (TimerConfig) i.getArguments()[2];
-            if(c.getInfo().equals(CommandService.RETRY_COMMANDS)){
-                return retryTimer;
-            }else{
-                return unlockTimer;
-            }
+        when(commandService.timerService.createIntervalTimer(anyLong(), anyLong(), any(TimerConfig.class))).thenReturn(unlockTimer);
+        when(commandService.timerService.createSingleActionTimer(anyLong(), any(TimerConfig.class))).then((i) -> {
+            pollDelays.add((Long) i.getArguments()[0]);
+            return retryTimer;
         });
         when(commandService.context.getBusinessObject(eq(CommandService.class))).thenReturn(commandService);
 
-        executableCommand = new ExecutableCommand() {
+        executableCommand = new ExecutableCommand<JsonNode>() {
             @Override
             public void execute(String idempotencyId, JsonNode context) {
                 executionCount.incrementAndGet();
+                executedContexts.add(context.toString());
                 if (throwExceptionDuringCommandExecution) {
                     throw new RuntimeException();
                 }
@@ -81,6 +113,16 @@ public class CommandServiceTest extends DbTest {
             public String getName() {
                 return "name";
             }
+
+            @Override
+            public Class<JsonNode> getContextType() {
+                return JsonNode.class;
+            }
+
+            @Override
+            public JsonNode coalesce(JsonNode pending, JsonNode latest) {
+                return ((ObjectNode) pending.deepCopy()).setAll((ObjectNode) latest);
+            }
         };
 
         when(commandService.executors.iterator()).then((i) ->
@@ -96,7 +138,7 @@ public class CommandServiceTest extends DbTest {
         // ///////////////////////////////////////
         // timeout #1 - retryTimer - no commands persisted yet
         // ///////////////////////////////////////
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
         assertEquals(0, executionCount.get());
@@ -107,17 +149,17 @@ public class CommandServiceTest extends DbTest {
         final String commandContext = "{}";
         Command cmd = new Command("name", commandContext);
 
-        em.getTransaction().begin();
+        begin();
         em.persist(cmd);
         em.getTransaction().commit();
 
-        em.getTransaction().begin();
+        begin();
         commandService.observe(cmd);
         em.getTransaction().commit();
         assertEquals(1, executionCount.get());
 
         //check db is empty
-        em.getTransaction().begin();
+        begin();
         List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(0, cmds.size());
@@ -126,7 +168,7 @@ public class CommandServiceTest extends DbTest {
         // timeout #2 - retryTimer - nothing to do, because no commands in DB
         // ///////////////////////////////////////
 
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
         assertEquals(1, executionCount.get());
@@ -139,17 +181,17 @@ public class CommandServiceTest extends DbTest {
 
         cmd = new Command("name", commandContext);
 
-        em.getTransaction().begin();
+        begin();
         em.persist(cmd);
         em.getTransaction().commit();
 
-        em.getTransaction().begin();
+        begin();
         commandService.observe(cmd);
         em.getTransaction().commit();
         assertEquals(2, executionCount.get());
 
         //check db is not empty
-        em.getTransaction().begin();
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(1, cmds.size());
@@ -159,13 +201,13 @@ public class CommandServiceTest extends DbTest {
         // ///////////////////////////////////////
         // timeout #3 - unlockTimer - doesnt do anything, because command already unlocked
         // ///////////////////////////////////////
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(unlockTimer);
         em.getTransaction().commit();
         assertEquals(2, executionCount.get());
 
         //check db is not empty
-        em.getTransaction().begin();
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(1, cmds.size());
@@ -175,13 +217,13 @@ public class CommandServiceTest extends DbTest {
         // ///////////////////////////////////////
         // timeout #4 - retryTimer - should now execute the failed command
         // ///////////////////////////////////////
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
         assertEquals(3, executionCount.get());
 
         //check db is not empty
-        em.getTransaction().begin();
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(1, cmds.size());
@@ -193,13 +235,13 @@ public class CommandServiceTest extends DbTest {
         // ///////////////////////////////////////
         throwExceptionDuringCommandExecution = false;
 
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
         assertEquals(4, executionCount.get());
 
         //check db is not empty
-        em.getTransaction().begin();
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(0, cmds.size());
@@ -212,17 +254,17 @@ public class CommandServiceTest extends DbTest {
 
         cmd = new Command("name", commandContext);
 
-        em.getTransaction().begin();
+        begin();
         em.persist(cmd);
         em.getTransaction().commit();
 
-        em.getTransaction().begin();
+        begin();
         commandService.observe(cmd);
         em.getTransaction().commit();
         assertEquals(5, executionCount.get());
 
         //check db is not empty
-        em.getTransaction().begin();
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(1, cmds.size());
@@ -233,78 +275,608 @@ public class CommandServiceTest extends DbTest {
         // timeout #6-9 - retryTimer - keeps failing and then stops executing!
         // ///////////////////////////////////////
         for(int i = 0; i < 4; i++){
-            em.getTransaction().begin();
+            begin();
             commandService.timeout(retryTimer);
             em.getTransaction().commit();
             assertEquals(6+i, executionCount.get());
 
-            //check db is not empty
-            em.getTransaction().begin();
+            begin();
             cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
             em.getTransaction().commit();
-            assertEquals(1, cmds.size());
-            assertEquals(i+2, cmds.get(0).getAttempts());
-            assertNull(cmds.get(0).getLocked());
+            if(i+2 < CommandService.MAX_NUM_RETRIES){
+                //check db is not empty
+                assertEquals(1, cmds.size());
+                assertEquals(i+2, cmds.get(0).getAttempts());
+                assertNull(cmds.get(0).getLocked());
+            }else{
+                assertEquals(0, cmds.size()); //given up on => moved to the dead letters
+            }
         }
 
+        List<DeadCommand> dead = deadCommands();
+        assertEquals(1, dead.size());
+        assertEquals(cmd.getId(), dead.get(0).getId());
+        assertEquals(5, dead.get(0).getAttempts());
+        assertEquals(cmd.getIdempotencyId(), dead.get(0).getIdempotencyId());
+        assertEquals(commandContext, dead.get(0).getContext());
+        assertTrue(dead.get(0).getLastError(), dead.get(0).getLastError().startsWith("Failed 5 times: java.lang.RuntimeException"));
+        assertEquals(64, dead.get(0).getStackDigest().length());
+
+        MeterRegistry registry = commandService.metrics.getRegistry();
+        assertEquals(6.0, registry.find("commands.retries").tags("command", "name").counter().count(), 0.0);
+        assertEquals(1.0, registry.find("commands.dead").tags("command", "name").counter().count(), 0.0);
+        assertEquals(7L, registry.find("commands.execution").tags("command", "name", "outcome", "failure").timer().count());
+        assertEquals(2L, registry.find("commands.execution").tags("command", "name", "outcome", "success").timer().count());
+
         // ///////////////////////////////////////
-        // timeout #10 - retryTimer - no longer executes because number of attempts is too high
+        // timeout #10 - retryTimer - no longer executes because it is no longer in the table
         // ///////////////////////////////////////
-        em.getTransaction().begin();
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
         assertEquals(9, executionCount.get());
 
-        //check db is not empty
-        em.getTransaction().begin();
+        // ///////////////////////////////////////
+        // simulate failure - put locked command in DB then call unlock timeout and ensure its executed immediately
+        // ///////////////////////////////////////
+        throwExceptionDuringCommandExecution = false;
+
+        cmd = new Command("name", commandContext);
+
+        begin();
+        em.persist(cmd);
+        em.getTransaction().commit();
+
+        Thread.sleep(50L); //ensure we are at least one ms later, when we unlock it!
+
+        begin();
+        commandService.timeout(unlockTimer);
+        em.getTransaction().commit();
+        assertEquals(10, executionCount.get());
+
+        //check db is empty, and only the dead letter from before remains
+        begin();
         cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
-        assertEquals(1, cmds.size());
-        assertEquals(5, cmds.get(0).getAttempts());
-        assertNull(cmds.get(0).getLocked());
+        assertEquals(0, cmds.size());
+        assertEquals(1, deadCommands().size());
+    }
+
+    @Test
+    public void testUnknownCommandIsGivenUpOnStraightAway() throws Exception {
+
+        commandService.init();
+
+        Command cmd = new Command("unknown", "{}");
+
+        begin();
+        em.persist(cmd);
+        em.getTransaction().commit();
+
+        begin();
+        commandService.observe(cmd);
+        em.getTransaction().commit();
+        assertEquals(0, executionCount.get());
+
+        begin();
+        List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+        em.getTransaction().commit();
+        assertEquals(0, cmds.size());
+
+        List<DeadCommand> dead = deadCommands();
+        assertEquals(1, dead.size());
+        assertEquals(0, dead.get(0).getAttempts());
+        assertEquals("Unknown command", dead.get(0).getLastError());
+        assertNull(dead.get(0).getStackDigest());
+    }
+
+    @Test
+    public void testBreakerOpensAndCloses() throws Exception {
+        System.setProperty("commandservice.breaker.name.failures", "2");
+        try {
+            AtomicLong now = new AtomicLong(1000L);
+            commandService.circuitBreakers = new CircuitBreakers();
+            commandService.circuitBreakers.clock = now::get;
+
+            commandService.init();
+            pollDelays.clear();
+
+            // ///////////////////////////////////////
+            // two failures in a row => open
+            // ///////////////////////////////////////
+            throwExceptionDuringCommandExecution = true;
+            persistAndObserve(new Command("name", "{}"));
+            persistAndObserve(new Command("name", "{}"));
+            assertEquals(2, executionCount.get());
+            assertEquals(CircuitBreakers.State.OPEN, commandService.circuitBreakers.getState("name"));
+            assertEquals(1L, commandService.circuitBreakers.getTimesOpened("name"));
+
+            // ///////////////////////////////////////
+            // while open, new commands are left in the DB without losing an attempt, and the poller doesn't claim them
+            // ///////////////////////////////////////
+            persistAndObserve(new Command("name", "{}"));
+            assertEquals(2, executionCount.get());
+            assertTrue(pollDelays.isEmpty()); //not woken up, since it wouldn't claim it anyway
+
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(2, executionCount.get());
+
+            begin();
+            List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+            em.getTransaction().commit();
+            assertEquals(3, cmds.size());
+            assertEquals(Arrays.asList(1, 1, 0), cmds.stream().map(Command::getAttempts).sorted(Collections.reverseOrder()).collect(Collectors.toList()));
+            assertTrue(cmds.stream().allMatch(c -> c.getLocked() == null));
+
+            // ///////////////////////////////////////
+            // after the wait, the probe fails => open again
+            // ///////////////////////////////////////
+            now.addAndGet(Long.getLong("commandservice.breaker.wait", 30000L));
+
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(3, executionCount.get()); //only the probe
+            assertEquals(CircuitBreakers.State.OPEN, commandService.circuitBreakers.getState("name"));
+            assertEquals(2L, commandService.circuitBreakers.getTimesOpened("name"));
+
+            // ///////////////////////////////////////
+            // after the wait, the probe succeeds => closed, and the rest are executed too
+            // ///////////////////////////////////////
+            throwExceptionDuringCommandExecution = false;
+            now.addAndGet(Long.getLong("commandservice.breaker.wait", 30000L));
+
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(6, executionCount.get());
+            assertEquals(CircuitBreakers.State.CLOSED, commandService.circuitBreakers.getState("name"));
+
+            begin();
+            cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+            em.getTransaction().commit();
+            assertEquals(0, cmds.size());
+        } finally {
+            System.clearProperty("commandservice.breaker.name.failures");
+        }
+    }
+
+    @Test
+    public void testRateLimitedCommandsAreDeferred() throws Exception {
+        System.setProperty("commandservice.ratelimit.name.rate", "1");
+        try {
+            AtomicLong now = new AtomicLong(System.currentTimeMillis());
+            commandService.rateLimiters = new RateLimiters();
+            commandService.rateLimiters.clock = now::get;
+
+            commandService.init();
+            pollDelays.clear();
+
+            persistAndObserve(new Command("name", "{}"));
+            assertEquals(1, executionCount.get());
+
+            // ///////////////////////////////////////
+            // over the limit => left in the DB without losing an attempt, due once there is a token again
+            // ///////////////////////////////////////
+            LocalDateTime before = LocalDateTime.now();
+            persistAndObserve(new Command("name", "{}"));
+            assertEquals(1, executionCount.get());
+            assertTrue(pollDelays.isEmpty()); //not woken up, since it wouldn't claim it anyway
+
+            begin();
+            List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+            em.getTransaction().commit();
+            assertEquals(1, cmds.size());
+            assertEquals(0, cmds.get(0).getAttempts());
+            assertNull(cmds.get(0).getLocked());
+            assertTrue(cmds.get(0).getNextAttemptAt().isAfter(before.plusNanos(900 * 1000000L)));
+
+            // ///////////////////////////////////////
+            // the poller doesn't claim it while the type is limited
+            // ///////////////////////////////////////
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(1, executionCount.get());
+
+            now.addAndGet(1000L);
+            assertFalse(commandService.rateLimiters.isLimited("name"));
+        } finally {
+            System.clearProperty("commandservice.ratelimit.name.rate");
+        }
+    }
+
+    @Test
+    public void testTraceIsContinuedWhenExecutingAndRetrying() throws Exception {
+
+        commandService.init();
 
         // ///////////////////////////////////////
-        // timeout #11 - retryTimer - ditto
+        // created within a trace, fails on the fast path
         // ///////////////////////////////////////
-        em.getTransaction().begin();
+        throwExceptionDuringCommandExecution = true;
+        Command cmd = new Command("name", "{}");
+        Span root = commandService.tracer.start("test");
+        persistAndObserve(cmd);
+        root.close();
+
+        // ///////////////////////////////////////
+        // the poller reads it from the DB and retries it, still as part of the same trace
+        // ///////////////////////////////////////
+        throwExceptionDuringCommandExecution = false;
+        begin();
         commandService.timeout(retryTimer);
         em.getTransaction().commit();
-        assertEquals(9, executionCount.get());
+        assertEquals(2, executionCount.get());
 
-        //check db is not empty
-        em.getTransaction().begin();
-        cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
-        em.getTransaction().commit();
-        assertEquals(1, cmds.size());
-        assertEquals(5, cmds.get(0).getAttempts());
-        assertNull(cmds.get(0).getLocked());
+        List<Span> trace = spans.getSpans(root.getTraceId());
+        Span persist = trace.stream().filter(s -> s.getName().equals("CommandService.persistCommand")).findFirst().get();
+        assertEquals(root.getSpanId(), persist.getParentId());
+
+        List<Span> executions = trace.stream().filter(s -> s.getName().equals("CommandService.execute")).collect(Collectors.toList());
+        assertEquals(2, executions.size());
+        for (Span execution : executions) {
+            assertEquals(persist.getSpanId(), execution.getParentId());
+        }
+        assertEquals("1", executions.get(0).getTags().get("attempt"));
+        assertEquals("failed", executions.get(0).getTags().get("error"));
+        assertEquals("2", executions.get(1).getTags().get("attempt"));
+        assertNull(executions.get(1).getTags().get("error"));
+        assertNull(commandService.tracer.current());
+    }
+
+    @Test
+    public void testCommandsWithTheSameDedupKeyAreMerged() throws Exception {
+        System.setProperty("commandservice.dedup.window", "0"); //so that the poller can claim them straight away
+        try {
+            commandService.init();
+
+            // ///////////////////////////////////////
+            // keep latest, by default => one row, with the last context, not executed on the fast path
+            // ///////////////////////////////////////
+            for (int i = 1; i <= 3; i++) {
+                persistDeduplicated("{\"v" + i + "\":" + i + "}");
+            }
+            List<Command> cmds = allCommands();
+            assertEquals(1, cmds.size());
+            assertEquals("{\"v3\":3}", cmds.get(0).getContext());
+            assertEquals("name:42", cmds.get(0).getDedupKey());
+            assertNull(cmds.get(0).getLocked());
+            assertEquals(0, executionCount.get());
+            assertEquals(2.0, commandService.metrics.getRegistry().find("commands.merged").tags("command", "name").counter().count(), 0.0);
+
+            // ///////////////////////////////////////
+            // claiming clears the key => the next one is inserted, rather than merged into one being executed
+            // ///////////////////////////////////////
+            begin();
+            assertEquals(1, commandService.commandRepo.lockCommands(10).size());
+            em.getTransaction().commit();
 
+            persistDeduplicated("{\"v4\":4}");
+            cmds = allCommands();
+            assertEquals(2, cmds.size());
+            assertNull(cmds.get(0).getDedupKey());
+            assertEquals("name:42", cmds.get(1).getDedupKey());
+
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(Collections.singletonList("{\"v4\":4}"), executedContexts);
+
+            // ///////////////////////////////////////
+            // keep first
+            // ///////////////////////////////////////
+            System.setProperty("commandservice.dedup.name.policy", MergePolicy.KEEP_FIRST.name());
+            persistDeduplicated("{\"v5\":5}");
+            persistDeduplicated("{\"v6\":6}");
+            cmds = allCommands();
+            assertEquals(2, cmds.size());
+            assertEquals("{\"v5\":5}", cmds.get(1).getContext());
+
+            // ///////////////////////////////////////
+            // coalesce, using the executable command
+            // ///////////////////////////////////////
+            System.setProperty("commandservice.dedup.name.policy", MergePolicy.COALESCE.name());
+            persistDeduplicated("{\"v7\":7}");
+            cmds = allCommands();
+            assertEquals(2, cmds.size());
+            assertEquals("{\"v5\":5,\"v7\":7}", cmds.get(1).getContext());
+
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(Arrays.asList("{\"v4\":4}", "{\"v5\":5,\"v7\":7}"), executedContexts);
+        } finally {
+            System.clearProperty("commandservice.dedup.window");
+            System.clearProperty("commandservice.dedup.name.policy");
+        }
+    }
+
+    @Test
+    public void testDeduplicatedCommandsAreExecutedAfterTheWindow() throws Exception {
+        System.setProperty("commandservice.dedup.window", "100");
+        try {
+            commandService.init();
+
+            //nothing to do => backed off to the maximum
+            for(int i = 0; i < 5; i++){
+                begin();
+                commandService.timeout(retryTimer);
+                em.getTransaction().commit();
+            }
+            pollDelays.clear();
+
+            // ///////////////////////////////////////
+            // the first one isn't executed on the fast path, but the poller is woken up for when it is due
+            // ///////////////////////////////////////
+            Command first = new Command("name", "{\"v1\":1}");
+            first.dedupBy(42);
+            begin();
+            commandService.persistCommand(first);
+            em.getTransaction().commit();
+
+            ArgumentCaptor<Command> fired = ArgumentCaptor.forClass(Command.class);
+            verify(commandService.event).fire(fired.capture());
+            begin();
+            commandService.observe(fired.getValue());
+            em.getTransaction().commit();
+            assertEquals(0, executionCount.get());
+            assertEquals(1, pollDelays.size());
+            assertTrue("poller scheduled in " + pollDelays.get(0) + "ms", pollDelays.get(0) <= 100L);
+
+            // ///////////////////////////////////////
+            // one which is merged doesn't need to wake it up
+            // ///////////////////////////////////////
+            Command second = new Command("name", "{\"v2\":2}");
+            second.dedupBy(42);
+            begin();
+            commandService.persistCommand(second);
+            em.getTransaction().commit();
+            verify(commandService.event).fire(any(Command.class)); //still only the first
+            assertEquals(1, pollDelays.size());
+
+            // ///////////////////////////////////////
+            // once the window has passed, the poller executes the merged command
+            // ///////////////////////////////////////
+            Thread.sleep(150L);
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+            assertEquals(Collections.singletonList("{\"v2\":2}"), executedContexts);
+        } finally {
+            System.clearProperty("commandservice.dedup.window");
+        }
+    }
+
+    @Test
+    public void testOnlyCommandsWithoutDedupKeyAreAppended() throws Exception {
+        System.setProperty("commandservice.dedup.name.enabled", "true");
+        try {
+            List<Command> appended = new ArrayList<>();
+            commandService.persistMode = PersistMode.APPEND;
+            commandService.commandAppender = new CommandAppender() {
+                @Override
+                public void append(Command command) {
+                    appended.add(command);
+                }
+            };
 
+            commandService.init();
+            verify(commandService.logger).warn(contains("[name]"));
+
+            // ///////////////////////////////////////
+            // a plain command is appended, and dispatched once the caller commits
+            // ///////////////////////////////////////
+            Command plain = new Command("name", "{}");
+            begin();
+            commandService.persistCommand(plain);
+            em.getTransaction().commit();
+            assertEquals(Collections.singletonList(plain), appended);
+            verify(commandService.event).fire(plain);
+            assertTrue(allCommands().isEmpty()); //the appender would have committed it
+
+            // ///////////////////////////////////////
+            // one with a dedup key is written in the caller's transaction instead
+            // ///////////////////////////////////////
+            persistDeduplicated("{}");
+            assertEquals(1, appended.size());
+            List<Command> cmds = allCommands();
+            assertEquals(1, cmds.size());
+            assertEquals("name:42", cmds.get(0).getDedupKey());
+        } finally {
+            System.clearProperty("commandservice.dedup.name.enabled");
+        }
+    }
+
+    @Test
+    public void testCommandsAreMergedInBulk() throws Exception {
+        commandService.init();
 
         // ///////////////////////////////////////
-        // simulate failure - put locked command in DB then call unlock timeout and ensure its executed immediately
+        // duplicates within the bulk, and of one which is already pending, are merged
         // ///////////////////////////////////////
-        throwExceptionDuringCommandExecution = false;
+        persistDeduplicated("{\"v\":0}");
 
-        cmd = new Command("name", commandContext);
+        List<Command> bulk = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            Command cmd = new Command("name", "{\"v\":" + i + "}");
+            cmd.dedupBy(i % 2 == 0 ? 42 : 43);
+            bulk.add(cmd);
+        }
+        Command plain = new Command("name", "{\"v\":5}");
+        bulk.add(plain);
 
-        em.getTransaction().begin();
-        em.persist(cmd);
+        begin();
+        commandService.persistCommands(bulk);
         em.getTransaction().commit();
 
-        Thread.sleep(50L); //ensure we are at least one ms later, when we unlock it!
+        List<Command> cmds = allCommands();
+        assertEquals(3, cmds.size());
+        assertEquals("name:42", cmds.get(0).getDedupKey());
+        assertEquals("{\"v\":4}", cmds.get(0).getContext());
+        assertEquals(plain.getId(), cmds.get(1).getId());
+        assertNull(cmds.get(1).getDedupKey());
+        assertNotNull(cmds.get(1).getLocked()); //the plain one goes via the fast path, as usual
+        assertEquals("name:43", cmds.get(2).getDedupKey());
+        assertEquals("{\"v\":3}", cmds.get(2).getContext());
+        assertEquals(3.0, commandService.metrics.getRegistry().find("commands.merged").tags("command", "name").counter().count(), 0.0);
+    }
 
-        em.getTransaction().begin();
-        commandService.timeout(unlockTimer);
+    @Test
+    public void testCompletedCommandsAreDeletedInBatches() throws Exception {
+        commandService.init();
+        commandService.deleteBatchSize = 3;
+
+        //the workers run when the test says so
+        List<Runnable> workers = new ArrayList<>();
+        commandService.commandExecutor = new CommandExecutor(workers::add, 10);
+
+        //while the first delete is in progress, everything else completes on another thread and has to wait for it
+        List<List<Long>> deleted = new ArrayList<>();
+        commandService.commandRepo = new CommandRepository() {
+            @Override
+            public int deleteAll(Collection<Long> ids) {
+                deleted.add(new ArrayList<>(ids));
+                if (deleted.size() == 1) {
+                    Thread others = new Thread(() -> workers.subList(1, workers.size()).forEach(Runnable::run));
+                    others.start();
+                    try {
+                        others.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.deleteAll(ids);
+            }
+        };
+        commandService.commandRepo.em = em;
+        commandService.commandRepo.logger = commandService.logger;
+
+        begin();
+        for (int i = 0; i < 10; i++) {
+            Command cmd = new Command("name", "{}");
+            cmd.resetLocked(); //so that the poller claims it
+            em.persist(cmd);
+        }
+        em.getTransaction().commit();
+
+        begin();
+        commandService.timeout(retryTimer);
+        em.getTransaction().commit();
+        assertEquals(10, workers.size());
+
+        begin();
+        workers.get(0).run();
         em.getTransaction().commit();
         assertEquals(10, executionCount.get());
 
-        //check db only contains failed task from previous tests
-        em.getTransaction().begin();
-        cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+        // ///////////////////////////////////////
+        // the first is deleted on its own, the rest in batches, each exactly once
+        // ///////////////////////////////////////
+        assertEquals(Arrays.asList(1, 3, 3, 3), deleted.stream().map(List::size).collect(Collectors.toList()));
+        List<Long> ids = deleted.stream().flatMap(List::stream).collect(Collectors.toList());
+        assertEquals(10, new HashSet<>(ids).size());
+        assertTrue(allCommands().isEmpty());
+    }
+
+    private void persistDeduplicated(String context) {
+        Command cmd = new Command("name", context);
+        cmd.dedupBy(42);
+        begin();
+        commandService.persistCommand(cmd);
+        em.getTransaction().commit();
+    }
+
+    private List<Command> allCommands() {
+        begin();
+        List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+        em.getTransaction().commit();
+        return cmds;
+    }
+
+    private void persistAndObserve(Command cmd) {
+        begin();
+        commandService.persistCommand(cmd);
+        em.getTransaction().commit();
+
+        begin();
+        commandService.observe(cmd);
+        em.getTransaction().commit();
+    }
+
+    private List<DeadCommand> deadCommands() {
+        begin();
+        List<DeadCommand> dead = em.createNamedQuery(DeadCommand.NQSelectAll.NAME, DeadCommand.class).getResultList();
+        em.getTransaction().commit();
+        return dead;
+    }
+
+    @Test
+    public void testPollingAdaptsToTheWorkload() throws Exception {
+
+        commandService.init();
+        assertEquals(Collections.singletonList(5000L), pollDelays);
+
+        // ///////////////////////////////////////
+        // nothing to do => backs off, up to the maximum
+        // ///////////////////////////////////////
+        for(int i = 0; i < 5; i++){
+            begin();
+            commandService.timeout(retryTimer);
+            em.getTransaction().commit();
+        }
+        assertEquals(Arrays.asList(5000L, 200L, 400L, 800L, 1000L, 1000L), pollDelays);
+
+        // ///////////////////////////////////////
+        // a command is committed but the executor is full => it is given back and the poller is woken up
+        // ///////////////////////////////////////
+        pollDelays.clear();
+        CommandExecutor executor = commandService.commandExecutor;
+        commandService.commandExecutor = new CommandExecutor(Runnable::run, 0);
+
+        Command cmd = new Command("name", "{}");
+        begin();
+        commandService.persistCommand(cmd);
+        em.getTransaction().commit();
+
+        begin();
+        commandService.observe(cmd);
+        em.getTransaction().commit();
+        assertEquals(0, executionCount.get());
+        assertEquals(Collections.singletonList(100L), pollDelays);
+
+        begin();
+        List<Command> cmds = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
         em.getTransaction().commit();
         assertEquals(1, cmds.size());
-        assertEquals(5, cmds.get(0).getAttempts());
+        assertEquals(0, cmds.get(0).getAttempts()); //it wasn't even started
         assertNull(cmds.get(0).getLocked());
+
+        // ///////////////////////////////////////
+        // the poller finds it, but less than a full batch => keeps polling often, then backs off again
+        // ///////////////////////////////////////
+        commandService.commandExecutor = executor;
+
+        begin();
+        commandService.timeout(retryTimer);
+        em.getTransaction().commit();
+        assertEquals(1, executionCount.get());
+
+        begin();
+        commandService.timeout(retryTimer);
+        em.getTransaction().commit();
+
+        assertEquals(Arrays.asList(100L, 100L, 200L), pollDelays);
+    }
+
+    /**
+     * the repository uses bulk updates which bypass the persistence context, so start each transaction with a clean
+     * one, just like the container does
+     */
+    private void begin() {
+        em.clear();
+        em.getTransaction().begin();
     }
 }
@@ -0,0 +1,102 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.flywaydb.core.Flyway;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * claims commands with skip locked, which H2 1.4 can't do, so the unit tests only ever run the fallback. this needs
+ * MySQL 8, like the one the application uses in the integration tests, but migrates a schema of its own, so that
+ * the running application doesn't claim its commands. use e.g. -Dtest.skiplocked.url=... to point it elsewhere.
+ */
+public class CommandSkipLockedIT {
+
+    private static final String URL = System.getProperty("test.skiplocked.url",
+            "jdbc:mysql://localhost:3306/command_demo_it?createDatabaseIfNotExist=true&useUnicode=true&characterEncoding=UTF-8&useSSL=false&serverTimezone=UTC");
+
+    private EntityManagerFactory emf;
+
+    @Before
+    public void setup(){
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(URL, "root", "password");
+        flyway.clean();
+        flyway.migrate();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.url", URL);
+        emf = Persistence.createEntityManagerFactory("primary_mysql", properties);
+    }
+
+    @After
+    public void teardown(){
+        emf.close();
+    }
+
+    @Test
+    public void testConcurrentClaimsDontWaitForEachOther() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        for(int i = 0; i < 20; i++){
+            Command cmd = new Command("name", "{\"asdf" + i + "\": 123}");
+            cmd.resetLocked(); //so that it is available for claiming
+            em.persist(cmd);
+        }
+        em.getTransaction().commit();
+        em.close();
+
+        CommandRepository nodeA = newRepository();
+        CommandRepository nodeB = newRepository();
+
+        //the default, UPDATE, can't skip locked rows on MySQL, so it must fall back to SKIP_LOCKED
+        assertTrue(nodeA.dialect().supportsSkipLocked());
+        assertEquals(ClaimMode.SKIP_LOCKED, nodeA.effectiveClaimMode());
+
+        // //////////////////////////////
+        // node A holds the locks on its batch while node B claims. B mustn't wait for A, so doing both in one
+        // thread only works with skip locked. otherwise B would wait for A's commit, i.e. forever
+        // //////////////////////////////
+        nodeA.em.getTransaction().begin();
+        List<Command> cmdsA = nodeA.lockCommands(10);
+
+        nodeB.em.getTransaction().begin();
+        long start = System.currentTimeMillis();
+        List<Command> cmdsB = nodeB.lockCommands(10);
+        long timeTaken = System.currentTimeMillis() - start;
+        nodeB.em.getTransaction().commit();
+        nodeA.em.getTransaction().commit();
+
+        assertEquals(10, cmdsA.size());
+        assertEquals(10, cmdsB.size());
+        Set<Long> claimed = new HashSet<>();
+        cmdsA.forEach(c -> claimed.add(c.getId()));
+        cmdsB.forEach(c -> claimed.add(c.getId()));
+        assertEquals(20, claimed.size());
+        assertTrue("claiming took " + timeTaken + "ms", timeTaken < 1000L);
+
+        nodeA.em.close();
+        nodeB.em.close();
+    }
+
+    private CommandRepository newRepository() {
+        CommandRepository repo = new CommandRepository();
+        repo.em = emf.createEntityManager();
+        repo.logger = mock(Logger.class);
+        repo.claimMode = ClaimMode.UPDATE;
+        return repo;
+    }
+}
@@ -4,10 +4,23 @@ import ch.maxant.commands.demo.DbTest;
 import org.apache.commons.lang3.mutable.MutableLong;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
 
+import javax.persistence.EntityManager;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
 
 public class CommandTest extends DbTest {
 
@@ -21,6 +34,7 @@ public class CommandTest extends DbTest {
 
         commandRepo = new CommandRepository();
         commandRepo.em = em;
+        commandRepo.claimMode = ClaimMode.FOR_UPDATE; //testAll checks that a second instance is blocked
     }
 
     @Test
@@ -63,6 +77,7 @@ public class CommandTest extends DbTest {
             Thread t = new Thread(() -> {
                 CommandRepository cr2 = new CommandRepository();
                 cr2.em = emf.createEntityManager();
+                cr2.claimMode = ClaimMode.FOR_UPDATE;
                 cr2.em.getTransaction().begin();
                 List<Command> cmds2 = cr2.lockCommands(10);
                 cr2.em.getTransaction().commit();
@@ -124,8 +139,9 @@ public class CommandTest extends DbTest {
             // unlock all locked commands
             // //////////////////////////////
             em.getTransaction().begin();
-            int numUnlocked = commandRepo.unlockCommands(0); //anything older than now
+            int numUnlocked = commandRepo.unlockCommands(LocalDateTime.now(), 1000); //anything older than now
             em.getTransaction().commit();
+            em.clear(); //unlocking is a bulk update, so what this entity manager has loaded is out of date
 
             assertEquals(2, numUnlocked); //the "lost" one above and the one from the other thread
 
@@ -166,4 +182,440 @@ public class CommandTest extends DbTest {
             em.close();
         }
     }
+
+    @Test
+    public void testConcurrentClaimingFallsBackToForUpdateWithoutDuplicates() throws Exception {
+        final int numCommands = 200;
+        final int numThreads = 4;
+        final int batchSize = 10;
+        final long holdLockFor = 50L;
+
+        em.getTransaction().begin();
+        for(int i = 0; i < numCommands; i++){
+            Command cmd = new Command("name", "{\"asdf" + i + "\": 123}");
+            cmd.resetLocked(); //so that it is available for claiming
+            em.persist(cmd);
+        }
+        em.getTransaction().commit();
+
+        // H2 only supports skip locked from 2.x on, and the tests run against 1.4, where SKIP_LOCKED must fall back
+        // to FOR_UPDATE rather than fail, and still never claim a command twice. CommandSkipLockedIT checks that
+        // claims really don't wait for each other, against MySQL 8.
+        assertFalse(commandRepo.dialect().supportsSkipLocked());
+        commandRepo.claimMode = ClaimMode.SKIP_LOCKED;
+        assertEquals(ClaimMode.FOR_UPDATE, commandRepo.effectiveClaimMode());
+
+        // //////////////////////////////
+        // lots of instances claiming at the same time, each holding their locks for a while, like a slow instance would
+        // //////////////////////////////
+        Set<Long> claimed = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < numThreads; i++){
+            Thread t = new Thread(() -> {
+                CommandRepository cr = new CommandRepository();
+                cr.em = emf.createEntityManager();
+                cr.claimMode = ClaimMode.SKIP_LOCKED;
+                try {
+                    start.await();
+                    List<Command> cmds;
+                    do {
+                        cr.em.getTransaction().begin();
+                        cmds = cr.lockCommands(batchSize);
+                        for(Command cmd : cmds){
+                            if(!claimed.add(cmd.getId())){
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                        Thread.sleep(holdLockFor);
+                        cr.em.getTransaction().commit();
+                    } while(!cmds.isEmpty());
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    cr.em.close();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for(Thread t : threads){
+            t.join();
+        }
+
+        assertTrue("errors: " + errors, errors.isEmpty());
+        assertEquals(0, duplicates.get());
+        assertEquals(numCommands, claimed.size());
+
+        em.clear(); //the other threads changed the rows
+        em.getTransaction().begin();
+        List<Command> cmds = em.createQuery(SELECT_ALL_COMMANDS, Command.class).getResultList();
+        em.getTransaction().commit();
+        assertEquals(numCommands, cmds.size());
+        for(Command cmd : cmds){
+            assertNotNull(cmd.getLocked());
+        }
+        em.close();
+    }
+
+    @Test
+    public void testClaimingWithUpdate() throws Exception {
+        em.getTransaction().begin();
+        for(int i = 0; i < 15; i++){
+            Command cmd = new Command("name", "{\"asdf" + i + "\": 123}");
+            cmd.resetLocked(); //so that it is available for claiming
+            em.persist(cmd);
+        }
+        em.getTransaction().commit();
+        em.close();
+
+        CommandRepository nodeA = newRepository("nodeA");
+        CommandRepository nodeB = newRepository("nodeB");
+
+        // //////////////////////////////
+        // each node gets a different batch, each batch with its own owner token
+        // //////////////////////////////
+        List<Command> cmdsA = claim(nodeA, 10);
+        List<Command> cmdsB = claim(nodeB, 10);
+        assertTrue(claim(nodeB, 10).isEmpty());
+
+        assertEquals(10, cmdsA.size());
+        assertEquals(5, cmdsB.size());
+        String ownerA = cmdsA.get(0).getOwner();
+        String ownerB = cmdsB.get(0).getOwner();
+        assertTrue(ownerA.startsWith("nodeA:"));
+        assertTrue(ownerB.startsWith("nodeB:"));
+        for(int i = 0; i < 10; i++){
+            assertEquals("{\"asdf" + i + "\": 123}", cmdsA.get(i).getContext());
+            assertEquals(ownerA, cmdsA.get(i).getOwner());
+            assertNotNull(cmdsA.get(i).getLocked());
+        }
+        for(int i = 0; i < 5; i++){
+            assertEquals("{\"asdf" + (i + 10) + "\": 123}", cmdsB.get(i).getContext());
+            assertEquals(ownerB, cmdsB.get(i).getOwner());
+        }
+
+        // //////////////////////////////
+        // node A's locks time out and node B takes over => node A may no longer reset them
+        // //////////////////////////////
+        Thread.sleep(50L); //ensure we are at least one ms later, when we unlock them!
+        LocalDateTime timedOut = LocalDateTime.now();
+        nodeB.em.getTransaction().begin();
+        assertEquals(15, nodeB.unlockCommands(timedOut, 100));
+        nodeB.em.getTransaction().commit();
+
+        Thread.sleep(50L); //so that node B's new locks are later than the time used for unlocking
+        List<Command> takenOver = claim(nodeB, 10);
+        assertEquals(10, takenOver.size());
+        assertEquals(cmdsA.get(0).getId(), takenOver.get(0).getId());
+
+        //unlocking again with the same time, e.g. by a slow instance, leaves node B's new claims alone
+        nodeA.em.getTransaction().begin();
+        assertEquals(0, nodeA.unlockCommands(timedOut, 100));
+        nodeA.em.getTransaction().commit();
+
+        nodeA.em.getTransaction().begin();
+        nodeA.em.clear();
+        nodeA.resetLockAfterFailure(cmdsA.get(0));
+        nodeA.em.getTransaction().commit();
+
+        EntityManager em2 = emf.createEntityManager();
+        Command cmd = em2.find(Command.class, cmdsA.get(0).getId());
+        assertEquals(0, cmd.getAttempts());
+        assertEquals(takenOver.get(0).getOwner(), cmd.getOwner());
+        assertNotNull(cmd.getLocked());
+
+        // //////////////////////////////
+        // but node B, which owns it, may
+        // //////////////////////////////
+        nodeB.em.getTransaction().begin();
+        nodeB.resetLockAfterFailure(takenOver.get(0));
+        nodeB.em.getTransaction().commit();
+
+        em2.clear();
+        cmd = em2.find(Command.class, cmdsA.get(0).getId());
+        assertEquals(1, cmd.getAttempts());
+        assertNull(cmd.getOwner());
+        assertNull(cmd.getLocked());
+        em2.close();
+
+        nodeA.em.close();
+        nodeB.em.close();
+    }
+
+    @Test
+    public void testClaimModeFallsBackToWhatTheDatabaseSupports() {
+        commandRepo.claimMode = ClaimMode.UPDATE;
+
+        //an update which can't skip locked rows is only used where nothing can
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.MYSQL, false);
+        assertEquals(ClaimMode.UPDATE, commandRepo.effectiveClaimMode());
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.MYSQL, true);
+        assertEquals(ClaimMode.SKIP_LOCKED, commandRepo.effectiveClaimMode());
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.H2, true);
+        assertEquals(ClaimMode.SKIP_LOCKED, commandRepo.effectiveClaimMode());
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.POSTGRESQL, true);
+        assertEquals(ClaimMode.UPDATE, commandRepo.effectiveClaimMode());
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.OTHER, false);
+        assertEquals(ClaimMode.FOR_UPDATE, commandRepo.effectiveClaimMode());
+
+        commandRepo.claimMode = ClaimMode.SKIP_LOCKED;
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.MYSQL, false);
+        assertEquals(ClaimMode.FOR_UPDATE, commandRepo.effectiveClaimMode());
+
+        commandRepo.claimMode = ClaimMode.FOR_UPDATE;
+        commandRepo.dialect = new CommandDialect(CommandDialect.Database.POSTGRESQL, true);
+        assertEquals(ClaimMode.FOR_UPDATE, commandRepo.effectiveClaimMode());
+        em.close();
+    }
+
+    private CommandRepository newRepository(String nodeId) {
+        CommandRepository repo = new CommandRepository();
+        repo.em = emf.createEntityManager();
+        repo.logger = mock(Logger.class);
+        repo.claimMode = ClaimMode.UPDATE;
+        repo.nodeId = nodeId;
+        return repo;
+    }
+
+    private List<Command> claim(CommandRepository repo, int batchSize) {
+        repo.em.getTransaction().begin();
+        repo.em.clear(); //so that we see what is in the database, rather than what this node last saw
+        List<Command> cmds = repo.lockCommands(batchSize);
+        repo.em.getTransaction().commit();
+        return cmds;
+    }
+
+    @Test
+    public void testUnlockingInChunks() throws Exception {
+        em.getTransaction().begin();
+        for(int i = 0; i < 25; i++){
+            commandRepo.create(new Command("name", "{}")); //locked, as if the instance which created them died
+        }
+        em.getTransaction().commit();
+        em.clear();
+
+        Thread.sleep(50L); //ensure we are at least one ms later, when we unlock them!
+        LocalDateTime lockedBefore = LocalDateTime.now();
+
+        List<Integer> chunks = new ArrayList<>();
+        int unlocked;
+        do {
+            em.getTransaction().begin();
+            unlocked = commandRepo.unlockCommands(lockedBefore, 10);
+            em.getTransaction().commit();
+            chunks.add(unlocked);
+        } while(unlocked >= 10);
+
+        assertEquals(Arrays.asList(10, 10, 5), chunks);
+
+        em.getTransaction().begin();
+        List<Command> cmds = em.createQuery(SELECT_ALL_COMMANDS, Command.class).getResultList();
+        em.getTransaction().commit();
+        assertEquals(25, cmds.size());
+        for(Command cmd : cmds){
+            assertNull(cmd.getLocked());
+            assertNull(cmd.getOwner());
+        }
+        em.close();
+    }
+
+    @Test
+    public void testBinaryContext() throws Exception {
+        ContextCodec codec = new ContextCodec();
+        List<String> lines = new ArrayList<>();
+        for(int i = 0; i < 100; i++){
+            lines.add("line number " + i + " of a context which repeats itself quite a bit");
+        }
+
+        em.getTransaction().begin();
+        Command text = codec.newCommand("name", Collections.singletonMap("lines", lines));
+        commandRepo.create(text);
+        codec.encoding = ContextCodec.Encoding.SMILE;
+        Command binary = codec.newCommand("name", Collections.singletonMap("lines", lines));
+        commandRepo.create(binary);
+        em.getTransaction().commit();
+        em.clear();
+
+        em.getTransaction().begin();
+        List<Command> cmds = em.createQuery(SELECT_ALL_COMMANDS, Command.class).getResultList();
+        em.getTransaction().commit();
+        assertEquals(2, cmds.size());
+        assertNull(cmds.get(0).getContextData());
+        assertNull(cmds.get(1).getContext());
+
+        // //////////////////////////////
+        // both can be read, regardless of the current setting
+        // //////////////////////////////
+        for(Command cmd : cmds){
+            Map<?, ?> context = codec.read(cmd, Map.class);
+            assertEquals(lines, context.get("lines"));
+        }
+
+        int textSize = cmds.get(0).getContext().getBytes(StandardCharsets.UTF_8).length;
+        int binarySize = cmds.get(1).getContextData().length;
+        System.out.println("Context stored as text: " + textSize + " bytes, as binary: " + binarySize + " bytes");
+        assertEquals(ContextCodec.FORMAT_SMILE | ContextCodec.FLAG_DEFLATED, cmds.get(1).getContextData()[0]);
+        assertTrue(binarySize < textSize / 4);
+        em.close();
+    }
+
+    @Test
+    public void testCommandsAreOnlyClaimedWhenDue() throws Exception {
+        em.getTransaction().begin();
+        Command later = new Command("name", "{}");
+        Command now = new Command("name", "{}");
+        commandRepo.create(later);
+        commandRepo.create(now);
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        commandRepo.resetLockAfterFailure(later, LocalDateTime.now().plusHours(1), null);
+        commandRepo.resetLockAfterFailure(now, LocalDateTime.now(), null);
+        em.getTransaction().commit();
+        em.clear();
+
+        em.getTransaction().begin();
+        List<Command> cmds = commandRepo.lockCommands(10);
+        em.getTransaction().commit();
+        assertEquals(1, cmds.size());
+        assertEquals(now.getId(), cmds.get(0).getId());
+
+        // //////////////////////////////
+        // the other one has its attempt counted, and is waiting
+        // //////////////////////////////
+        em.clear();
+        Command waiting = em.find(Command.class, later.getId());
+        assertEquals(1, waiting.getAttempts());
+        assertNull(waiting.getLocked());
+        assertTrue(waiting.getNextAttemptAt().isAfter(LocalDateTime.now().plusMinutes(59)));
+        em.close();
+    }
+
+    @Test
+    public void testCountByCommand() throws Exception {
+        em.getTransaction().begin();
+        commandRepo.create(new Command("a", "{}"));
+        commandRepo.create(new Command("a", "{}"));
+        commandRepo.create(new Command("b", "{}"));
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        Map<String, Long> counts = commandRepo.countByCommand();
+        em.getTransaction().commit();
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(2L), counts.get("a"));
+        assertEquals(Long.valueOf(1L), counts.get("b"));
+        em.close();
+    }
+
+    @Test
+    public void testLanesAreClaimedWeightedFairly() throws Exception {
+        commandRepo.claimMode = ClaimMode.UPDATE;
+        commandRepo.priorityLanes = new PriorityLanes(); //6:3:1, starting afresh
+
+        em.getTransaction().begin();
+        for(int i = 0; i < 30; i++){
+            Command bulk = new Command("import", "{}");
+            bulk.setPriority(CommandPriority.LOW);
+            commandRepo.create(bulk);
+        }
+        for(int i = 0; i < 30; i++){
+            Command urgent = new Command("urgent", "{}");
+            urgent.setPriority(CommandPriority.HIGH);
+            commandRepo.create(urgent);
+        }
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        assertEquals(60, commandRepo.unlockCommands(LocalDateTime.now().plusSeconds(1), 100));
+        em.getTransaction().commit();
+
+        // //////////////////////////////
+        // the low lane gets its share even though the high one has plenty, and the normal lane's share, which it
+        // can't use, goes to the high lane. high priority commands come first.
+        // //////////////////////////////
+        em.getTransaction().begin();
+        em.clear();
+        List<Command> cmds = commandRepo.lockCommands(10);
+        em.getTransaction().commit();
+        assertEquals(10, cmds.size());
+        assertEquals(9, cmds.stream().filter(c -> c.getPriority() == CommandPriority.HIGH).count());
+        assertEquals(1, cmds.stream().filter(c -> c.getPriority() == CommandPriority.LOW).count());
+        assertEquals(CommandPriority.HIGH, cmds.get(0).getPriority());
+        assertEquals(CommandPriority.LOW, cmds.get(9).getPriority());
+
+        // //////////////////////////////
+        // a high priority command created after a huge low priority backlog is picked up in the next batch
+        // //////////////////////////////
+        em.getTransaction().begin();
+        em.createNamedQuery(Command.NQDeleteByIds.NAME)
+                .setParameter(Command.NQDeleteByIds.PARAM_IDS, em.createQuery("select c.id from Command c where c.priority = 2", Long.class).getResultList())
+                .executeUpdate();
+        Command urgent = new Command("urgent", "{}");
+        urgent.setPriority(CommandPriority.HIGH);
+        commandRepo.create(urgent);
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        commandRepo.releaseLock(urgent);
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        em.clear();
+        cmds = commandRepo.lockCommands(2);
+        em.getTransaction().commit();
+        assertEquals(2, cmds.size());
+        assertEquals(urgent.getId(), cmds.get(0).getId());
+        assertEquals(CommandPriority.LOW, cmds.get(1).getPriority());
+        em.close();
+    }
+
+    @Test
+    public void testInstancesClaimTheirOwnPartitionsFirstAndThenSteal() throws Exception {
+        em.getTransaction().begin();
+        for(int i = 0; i < 10; i++){
+            Command cmd = new Command("name", "{}");
+            cmd.partitionBy(i); //small integers are their own partition
+            assertEquals(i, cmd.getPartitionKey());
+            commandRepo.create(cmd);
+        }
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        assertEquals(10, commandRepo.unlockCommands(LocalDateTime.now().plusSeconds(1), 100));
+        em.getTransaction().commit();
+
+        CommandRepository nodeA = newRepository("A");
+        nodeA.nodeIndex = 0;
+        nodeA.nodeCount = 2;
+        CommandRepository nodeB = newRepository("B");
+        nodeB.nodeIndex = 1;
+        nodeB.nodeCount = 2;
+
+        // //////////////////////////////
+        // A gets the even partitions, B the odd ones
+        // //////////////////////////////
+        List<Command> cmdsA = claim(nodeA, 3);
+        assertEquals(3, cmdsA.size());
+        assertTrue(cmdsA.stream().allMatch(c -> c.getPartitionKey() % 2 == 0));
+
+        List<Command> cmdsB = claim(nodeB, 3);
+        assertEquals(3, cmdsB.size());
+        assertTrue(cmdsB.stream().allMatch(c -> c.getPartitionKey() % 2 == 1));
+
+        // //////////////////////////////
+        // A runs out of its own, so helps B
+        // //////////////////////////////
+        cmdsA = claim(nodeA, 10);
+        assertEquals(4, cmdsA.size());
+        assertEquals(2, cmdsA.stream().filter(c -> c.getPartitionKey() % 2 == 0).count());
+        assertEquals(2, cmdsA.stream().filter(c -> c.getPartitionKey() % 2 == 1).count());
+
+        assertTrue(claim(nodeB, 10).isEmpty());
+
+        nodeA.em.close();
+        nodeB.em.close();
+        em.close();
+    }
 }
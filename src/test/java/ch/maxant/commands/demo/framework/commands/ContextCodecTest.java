@@ -0,0 +1,84 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.CreateTaskContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ContextCodecTest {
+
+    private final ContextCodec codec = new ContextCodec();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String json = codec.write(new CreateTaskContext(42L, "a \"quoted\" text, with a \\ too"));
+
+        CreateTaskContext read = codec.read(json, CreateTaskContext.class);
+        assertEquals(CreateTaskContext.CURRENT_VERSION, read.getVersion());
+        assertEquals(42L, read.getCaseNr());
+        assertEquals("a \"quoted\" text, with a \\ too", read.getTextForTask());
+
+        //still readable as a tree
+        assertEquals(42L, codec.read(json, JsonNode.class).get("caseNr").longValue());
+    }
+
+    @Test
+    public void testOldAndNewPayloads() throws Exception {
+        // //////////////////////////////
+        // written before contexts had a version
+        // //////////////////////////////
+        CreateTaskContext read = codec.read("{\"caseNr\": 1, \"textForTask\": \"old\"}", CreateTaskContext.class);
+        assertEquals(1, read.getVersion());
+        assertEquals(1L, read.getCaseNr());
+        assertEquals("old", read.getTextForTask());
+
+        // //////////////////////////////
+        // written by a newer version, with properties we don't know about yet
+        // //////////////////////////////
+        read = codec.read("{\"version\": 99, \"caseNr\": 2, \"textForTask\": \"new\", \"priority\": \"HIGH\"}", CreateTaskContext.class);
+        assertEquals(99, read.getVersion());
+        assertEquals(2L, read.getCaseNr());
+        assertEquals("new", read.getTextForTask());
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        codec.encoding = ContextCodec.Encoding.SMILE;
+        codec.compressThreshold = 200;
+
+        // //////////////////////////////
+        // small contexts aren't worth deflating
+        // //////////////////////////////
+        Command cmd = codec.newCommand("name", new CreateTaskContext(42L, "short"));
+        assertNull(cmd.getContext());
+        assertEquals(ContextCodec.FORMAT_SMILE, cmd.getContextData()[0]);
+        CreateTaskContext read = codec.read(cmd, CreateTaskContext.class);
+        assertEquals(42L, read.getCaseNr());
+        assertEquals("short", read.getTextForTask());
+
+        // //////////////////////////////
+        // large ones are
+        // //////////////////////////////
+        String longText = String.join(" ", Collections.nCopies(100, "a task with a long description"));
+        cmd = codec.newCommand("name", new CreateTaskContext(43L, longText));
+        assertEquals(ContextCodec.FORMAT_SMILE | ContextCodec.FLAG_DEFLATED, cmd.getContextData()[0]);
+        assertTrue(cmd.getContextData().length < longText.length() / 4);
+        read = codec.read(cmd, CreateTaskContext.class);
+        assertEquals(43L, read.getCaseNr());
+        assertEquals(longText, read.getTextForTask());
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        try {
+            codec.decode(new byte[]{0x0F, 1, 2, 3}, CreateTaskContext.class);
+            fail("expected exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("format"));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.DbTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class DeadCommandTest extends DbTest {
+
+    private CommandRepository commandRepo;
+
+    private DeadCommandRepository deadRepo;
+
+    @Before
+    public void setup(){
+        super.setup();
+
+        commandRepo = new CommandRepository();
+        commandRepo.em = em;
+        commandRepo.logger = mock(Logger.class);
+
+        deadRepo = new DeadCommandRepository();
+        deadRepo.em = em;
+    }
+
+    @Test
+    public void testBuryRequeueAndPurge() throws Exception {
+        // //////////////////////////////
+        // three commands fail until they are given up on
+        // //////////////////////////////
+        Command[] cmds = new Command[3];
+        em.getTransaction().begin();
+        for(int i = 0; i < cmds.length; i++){
+            cmds[i] = new Command(i == 2 ? "other" : "name", "{\"i\": " + i + "}");
+            commandRepo.create(cmds[i]);
+        }
+        em.getTransaction().commit();
+
+        //the first attempt holds the lock taken when they were created. after that they have to be claimed again,
+        //like the service does, so that each failure is reported by the owner of the lock which that attempt holds
+        List<Command> claimed = Arrays.asList(cmds);
+        for(int attempt = 0; attempt < CommandService.MAX_NUM_RETRIES; attempt++){
+            if(attempt > 0){
+                em.clear();
+                em.getTransaction().begin();
+                claimed = commandRepo.lockCommands(10);
+                em.getTransaction().commit();
+                assertEquals("attempt " + attempt, cmds.length, claimed.size());
+            }
+
+            for(Command cmd : claimed){
+                em.clear();
+                em.getTransaction().begin();
+                commandRepo.resetLockAfterFailure(cmd, LocalDateTime.now(), new IllegalStateException("attempt " + attempt));
+                em.getTransaction().commit();
+            }
+        }
+        em.clear();
+
+        assertTrue(em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList().isEmpty());
+
+        List<DeadCommand> dead = deadRepo.list(null, 0, 100);
+        assertEquals(3, dead.size());
+        for(DeadCommand d : dead){
+            assertEquals(CommandService.MAX_NUM_RETRIES, d.getAttempts());
+            assertEquals("Failed 5 times: java.lang.IllegalStateException: attempt 4", d.getLastError());
+        }
+        assertEquals(dead.get(0).getStackDigest(), dead.get(1).getStackDigest()); //same reason, despite the message being different
+
+        assertEquals(1, deadRepo.list("other", 0, 100).size());
+        assertEquals(2, deadRepo.list(null, 1, 100).size());
+
+        // //////////////////////////////
+        // requeue two of them => back in the working table, as good as new
+        // //////////////////////////////
+        em.getTransaction().begin();
+        assertEquals(2, deadRepo.requeue(Arrays.asList(cmds[0].getId(), cmds[1].getId(), -1L)));
+        em.getTransaction().commit();
+        em.clear();
+
+        List<Command> requeued = em.createQuery(CommandTest.SELECT_ALL_COMMANDS, Command.class).getResultList();
+        assertEquals(2, requeued.size());
+        for(int i = 0; i < 2; i++){
+            assertEquals(cmds[i].getId(), requeued.get(i).getId());
+            assertEquals(cmds[i].getIdempotencyId(), requeued.get(i).getIdempotencyId());
+            assertEquals("{\"i\": " + i + "}", requeued.get(i).getContext());
+            assertEquals(0, requeued.get(i).getAttempts());
+            assertNull(requeued.get(i).getLocked());
+        }
+
+        em.getTransaction().begin();
+        assertEquals(2, commandRepo.lockCommands(10).size());
+        em.getTransaction().commit();
+
+        // //////////////////////////////
+        // purge the rest
+        // //////////////////////////////
+        em.getTransaction().begin();
+        assertEquals(0, deadRepo.purgeDiedBefore(LocalDateTime.now().minusDays(1)));
+        assertEquals(1, deadRepo.purge(Collections.singletonList(cmds[2].getId())));
+        em.getTransaction().commit();
+        em.clear();
+
+        assertTrue(deadRepo.list(null, 0, 100).isEmpty());
+        em.close();
+    }
+
+    @Test
+    public void testDescribe() {
+        Exception e = new RuntimeException("outer", new IllegalArgumentException("inner"));
+        assertEquals("Failed: java.lang.RuntimeException: outer / caused by: java.lang.IllegalArgumentException: inner",
+                DeadCommand.describe("Failed", e));
+
+        StringBuilder longMessage = new StringBuilder();
+        for(int i = 0; i < 200; i++){
+            longMessage.append("too long ");
+        }
+        assertEquals(DeadCommand.MAX_ERROR_LENGTH, DeadCommand.describe("Failed", new RuntimeException(longMessage.toString())).length());
+    }
+}
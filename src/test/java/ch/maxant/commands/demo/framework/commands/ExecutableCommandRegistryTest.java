@@ -0,0 +1,60 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExecutableCommandRegistryTest {
+
+    private static final int NUM_COMMAND_TYPES = 64;
+
+    @Test
+    public void testLookup() {
+        ExecutableCommandRegistry registry = new ExecutableCommandRegistry(executors(NUM_COMMAND_TYPES));
+
+        assertEquals(NUM_COMMAND_TYPES, registry.getNames().size());
+        assertEquals("command42", registry.get("command42").getName());
+        assertNull(registry.get("unknown"));
+    }
+
+    @Test
+    public void testDuplicateNamesAreDetected() {
+        try {
+            new ExecutableCommandRegistry(Arrays.asList(executor("a"), executor("b"), executor("a")));
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("'a'"));
+        }
+    }
+
+    static List<ExecutableCommand<?>> executors(int numCommandTypes) {
+        List<ExecutableCommand<?>> executors = new ArrayList<>();
+        for(int i = 0; i < numCommandTypes; i++){
+            executors.add(executor("command" + i));
+        }
+        return executors;
+    }
+
+    static ExecutableCommand<JsonNode> executor(String name) {
+        return new ExecutableCommand<JsonNode>() {
+            @Override
+            public void execute(String idempotencyId, JsonNode context) {
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Class<JsonNode> getContextType() {
+                return JsonNode.class;
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PriorityLanesTest {
+
+    @Test
+    public void testSharesAreProportionalToTheWeights() {
+        PriorityLanes lanes = new PriorityLanes();
+        assertArrayEquals(new int[]{6, 3, 1}, lanes.quotas(10));
+        assertArrayEquals(new int[]{12, 6, 2}, lanes.quotas(20));
+    }
+
+    @Test
+    public void testSmallBatchesStillGetEveryLaneItsShare() {
+        PriorityLanes lanes = new PriorityLanes();
+        int[] total = new int[3];
+        for(int i = 0; i < 10; i++){
+            int[] quotas = lanes.quotas(1);
+            for(int j = 0; j < quotas.length; j++){
+                total[j] += quotas[j];
+            }
+        }
+        assertArrayEquals(new int[]{6, 3, 1}, total);
+    }
+
+    @Test
+    public void testWeightsCanBeConfigured() {
+        System.setProperty("commandservice.priority.weight.LOW", "0");
+        try {
+            assertArrayEquals(new int[]{6, 3, 0}, new PriorityLanes().quotas(9));
+        } finally {
+            System.clearProperty("commandservice.priority.weight.LOW");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import ch.maxant.commands.demo.DbTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class RateLimitersTest extends DbTest {
+
+    private AtomicLong now = new AtomicLong(System.currentTimeMillis());
+
+    private RateLimitRepository repository;
+
+    @Before
+    public void setup(){
+        super.setup();
+
+        System.setProperty("commandservice.ratelimit.local.rate", "10");
+        System.setProperty("commandservice.ratelimit.local.burst", "2");
+        System.setProperty("commandservice.ratelimit.shared.cluster.rate", "10");
+        System.setProperty("commandservice.ratelimit.shared.cluster.burst", "4");
+        System.setProperty("commandservice.ratelimit.cluster.lease", "100"); //one token at a time
+
+        repository = new RateLimitRepository();
+        repository.em = em;
+    }
+
+    @After
+    public void clearProperties(){
+        System.clearProperty("commandservice.ratelimit.local.rate");
+        System.clearProperty("commandservice.ratelimit.local.burst");
+        System.clearProperty("commandservice.ratelimit.shared.cluster.rate");
+        System.clearProperty("commandservice.ratelimit.shared.cluster.burst");
+        System.clearProperty("commandservice.ratelimit.cluster.lease");
+    }
+
+    private RateLimiters newRateLimiters() {
+        RateLimiters limiters = new RateLimiters();
+        limiters.repository = repository;
+        limiters.logger = mock(Logger.class);
+        limiters.clock = now::get;
+        return limiters;
+    }
+
+    @Test
+    public void testLocal() {
+        RateLimiters limiters = newRateLimiters();
+
+        //starts with a full burst
+        assertTrue(limiters.tryAcquire("local"));
+        assertTrue(limiters.tryAcquire("local"));
+        assertFalse(limiters.tryAcquire("local"));
+        assertTrue(limiters.isLimited("local"));
+        assertEquals(Collections.singleton("local"), limiters.getLimitedCommands());
+        assertEquals(100L, limiters.getWait("local"));
+
+        now.addAndGet(50L);
+        assertEquals(50L, limiters.getWait("local"));
+        assertFalse(limiters.tryAcquire("local"));
+
+        now.addAndGet(50L);
+        assertFalse(limiters.isLimited("local"));
+        assertTrue(limiters.tryAcquire("local"));
+        assertFalse(limiters.tryAcquire("local"));
+
+        //no more than the burst is saved up
+        now.addAndGet(10000L);
+        assertTrue(limiters.tryAcquire("local"));
+        assertTrue(limiters.tryAcquire("local"));
+        assertFalse(limiters.tryAcquire("local"));
+
+        //types without a rate aren't limited
+        for(int i = 0; i < 100; i++){
+            assertTrue(limiters.tryAcquire("other"));
+        }
+        assertFalse(limiters.isLimited("other"));
+        assertEquals(0L, limiters.getWait("other"));
+    }
+
+    @Test
+    public void testClusterWideLimitIsSharedThroughTheDatabase() {
+        RateLimiters node1 = newRateLimiters();
+        RateLimiters node2 = newRateLimiters();
+
+        // ///////////////////////////////////////
+        // both instances use up the burst between them
+        // ///////////////////////////////////////
+        assertTrue(acquire(node1));
+        assertTrue(acquire(node2));
+        assertTrue(acquire(node1));
+        assertTrue(acquire(node2));
+        assertFalse(acquire(node1));
+        assertFalse(acquire(node2));
+        assertTrue(node1.isLimited("shared"));
+        assertTrue(node2.isLimited("shared"));
+
+        // ///////////////////////////////////////
+        // one token comes in every 100ms, which goes to whoever asks first
+        // ///////////////////////////////////////
+        now.addAndGet(100L);
+        assertTrue(acquire(node1));
+        assertFalse(acquire(node2));
+
+        begin();
+        CommandRateLimit limit = em.find(CommandRateLimit.class, "shared");
+        em.getTransaction().commit();
+        assertEquals(0.0, limit.getTokens(), 0.001);
+    }
+
+    private boolean acquire(RateLimiters limiters) {
+        begin();
+        boolean acquired = limiters.tryAcquire("shared");
+        em.getTransaction().commit();
+        return acquired;
+    }
+
+    private void begin() {
+        em.clear();
+        em.getTransaction().begin();
+    }
+}
@@ -0,0 +1,59 @@
+package ch.maxant.commands.demo.framework.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryBackoffTest {
+
+    @Before
+    public void setup(){
+        System.setProperty("commandservice.backoff.initial", "100");
+        System.setProperty("commandservice.backoff.max", "1000");
+        System.setProperty("commandservice.backoff.multiplier", "2");
+        System.setProperty("commandservice.backoff.jitter", "0");
+        System.setProperty("commandservice.backoff.slow.initial", "500");
+    }
+
+    @After
+    public void teardown(){
+        System.clearProperty("commandservice.backoff.initial");
+        System.clearProperty("commandservice.backoff.max");
+        System.clearProperty("commandservice.backoff.multiplier");
+        System.clearProperty("commandservice.backoff.jitter");
+        System.clearProperty("commandservice.backoff.slow.initial");
+    }
+
+    @Test
+    public void testExponentialUpToMax() {
+        RetryBackoff backoff = new RetryBackoff();
+        assertEquals(100L, backoff.delay("name", 1));
+        assertEquals(200L, backoff.delay("name", 2));
+        assertEquals(400L, backoff.delay("name", 3));
+        assertEquals(800L, backoff.delay("name", 4));
+        assertEquals(1000L, backoff.delay("name", 5));
+
+        //overridden per type
+        assertEquals(500L, backoff.delay("slow", 1));
+        assertEquals(1000L, backoff.delay("slow", 2));
+    }
+
+    @Test
+    public void testJitter() {
+        System.setProperty("commandservice.backoff.jitter", "0.5");
+        RetryBackoff backoff = new RetryBackoff();
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for(int i = 0; i < 1000; i++){
+            long delay = backoff.delay("name", 4);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("" + min, min >= 400L);
+        assertTrue("" + max, max <= 800L);
+        assertTrue("spread out between " + min + " and " + max, max - min > 200L);
+    }
+}
@@ -0,0 +1,132 @@
+package ch.maxant.commands.demo.framework.tracing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemorySpanExporter spans = new InMemorySpanExporter(10);
+
+    @Test
+    public void testChildrenBelongToTheSameTrace() {
+        Tracer tracer = new Tracer(1.0, spans);
+
+        try (Span root = tracer.start("root")) {
+            assertSame(root, tracer.current());
+            try (Span child = tracer.start("child")) {
+                child.tag("a", 1);
+                assertSame(child, tracer.current());
+            }
+            assertSame(root, tracer.current());
+        }
+        assertNull(tracer.current());
+
+        List<Span> exported = spans.getSpans();
+        assertEquals(2, exported.size());
+        Span child = exported.get(0);
+        Span root = exported.get(1);
+        assertEquals("child", child.getName());
+        assertEquals(root.getTraceId(), child.getTraceId());
+        assertEquals(root.getSpanId(), child.getParentId());
+        assertNull(root.getParentId());
+        assertEquals(32, root.getTraceId().length());
+        assertEquals(16, root.getSpanId().length());
+        assertEquals("1", child.getTags().get("a"));
+        assertTrue(child.getDurationMicros() >= 0);
+    }
+
+    @Test
+    public void testResumeInAnotherThread() throws Exception {
+        Tracer tracer = new Tracer(1.0, spans);
+
+        String traceParent;
+        try (Span root = tracer.start("root")) {
+            traceParent = tracer.currentTraceParent();
+            assertEquals("00-" + root.getTraceId() + "-" + root.getSpanId() + "-01", traceParent);
+        }
+
+        AtomicReference<Span> currentWhileOpen = new AtomicReference<>();
+        AtomicReference<Span> currentAfterwards = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try (Span resumed = tracer.resume("resumed", traceParent)) {
+                currentWhileOpen.set(tracer.current());
+            }
+            currentAfterwards.set(tracer.current());
+        });
+        t.start();
+        t.join();
+        assertEquals("resumed", currentWhileOpen.get().getName());
+        assertNull(currentAfterwards.get());
+
+        Span root = spans.getSpans().get(0);
+        List<Span> trace = spans.getSpans(root.getTraceId());
+        assertEquals(2, trace.size());
+        assertEquals("resumed", trace.get(1).getName());
+        assertEquals(root.getSpanId(), trace.get(1).getParentId());
+    }
+
+    @Test
+    public void testUnsampledTracesAreNotExported() {
+        Tracer tracer = new Tracer(0.0, spans);
+
+        try (Span root = tracer.start("root")) {
+            assertFalse(root.isSampled());
+            assertNull(tracer.currentTraceParent());
+            try (Span child = tracer.start("child")) {
+                assertFalse(child.isSampled());
+                child.tag("a", 1);
+                assertTrue(child.getTags().isEmpty());
+            }
+        }
+        assertNull(tracer.current());
+
+        //the decision was made where it started, so a missing or unsampled context isn't traced
+        assertFalse(new Tracer(1.0, spans).resume("resumed", null).isSampled());
+        assertTrue(spans.getSpans().isEmpty());
+    }
+
+    @Test
+    public void testInMemoryKeepsTheMostRecent() {
+        Tracer tracer = new Tracer(1.0, spans);
+        for(int i = 0; i < 15; i++){
+            tracer.start("span" + i).close();
+        }
+        List<Span> exported = spans.getSpans();
+        assertEquals(10, exported.size());
+        assertEquals("span5", exported.get(0).getName());
+        assertEquals("span14", exported.get(9).getName());
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        Path file = folder.newFile("spans.jsonl").toPath();
+        try (FileSpanExporter exporter = new FileSpanExporter(file)) {
+            Tracer tracer = new Tracer(1.0, exporter);
+            try (Span root = tracer.start("root")) {
+                tracer.start("child").tag("command", "CreateTask").close();
+            }
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        JsonNode child = new ObjectMapper().readTree(lines.get(0));
+        JsonNode root = new ObjectMapper().readTree(lines.get(1));
+        assertEquals("child", child.get("name").asText());
+        assertEquals("CreateTask", child.get("tags").get("command").asText());
+        assertEquals(root.get("spanId").asText(), child.get("parentId").asText());
+    }
+}